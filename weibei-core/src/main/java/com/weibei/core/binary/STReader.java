@@ -10,6 +10,7 @@ import com.weibei.core.coretypes.uint.UInt32;
 import com.weibei.core.coretypes.uint.UInt64;
 import com.weibei.core.coretypes.uint.UInt8;
 import com.weibei.core.serialized.BinaryParser;
+import com.weibei.core.serialized.ByteBufferBinaryParser;
 import com.weibei.core.serialized.StreamBinaryParser;
 import com.weibei.core.types.known.sle.LedgerEntry;
 import com.weibei.core.types.known.tx.Transaction;
@@ -28,8 +29,18 @@ public class STReader {
         this.parser = new BinaryParser(hex);
     }
 
+    /**
+     * Compressed (.gz) files are streamed, anything else is memory mapped.
+     */
     public static STReader fromFile(String arg) {
-        return new STReader(StreamBinaryParser.fromFile(arg));
+        if (arg.endsWith("gz")) {
+            return new STReader(StreamBinaryParser.fromFile(arg));
+        }
+        return mapFile(arg);
+    }
+
+    public static STReader mapFile(String arg) {
+        return new STReader(ByteBufferBinaryParser.fromFile(arg));
     }
 
     public UInt8 uInt8() {
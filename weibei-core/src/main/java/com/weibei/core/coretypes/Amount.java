@@ -443,6 +443,12 @@ public class Amount extends Number implements SerializedType, Comparable<Amount>
         }
     }
 
+    @Override
+    public int encodedSize() {
+        // The mantissa, then for IOUs the currency and issuer
+        return isNative() ? 8 : 48;
+    }
+
     @Override
     public Type type() {
         return Type.Amount;
@@ -38,6 +38,11 @@ public class Blob implements SerializedType {
         translate.toBytesSink(this, to);
     }
 
+    @Override
+    public int encodedSize() {
+        return buffer.length;
+    }
+
     @Override
     public Type type() {
         return Type.Blob;
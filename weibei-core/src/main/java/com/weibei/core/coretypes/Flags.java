@@ -28,6 +28,11 @@ public class Flags extends BitSet implements SerializedType {
 
     }
 
+    @Override
+    public int encodedSize() {
+        return 0;
+    }
+
     @Override
     public Type type() {
         return Type.UInt32;
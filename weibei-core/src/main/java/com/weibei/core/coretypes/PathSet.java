@@ -141,6 +141,21 @@ public class PathSet extends ArrayList<PathSet.Path> implements SerializedType {
         buffer.add(PATHSET_END_BYTE);
     }
 
+    @Override
+    public int encodedSize() {
+        int size = 0;
+        for (Path path : this) {
+            // The separator, or the end byte for the last path
+            size++;
+            for (Hop hop : path) {
+                size += 1 + (hop.hasAccount() ? 20 : 0) +
+                            (hop.hasCurrency() ? 20 : 0) +
+                            (hop.hasIssuer() ? 20 : 0);
+            }
+        }
+        return Math.max(size, 1);
+    }
+
     @Override
     public Type type() {
         return Type.PathSet;
@@ -45,6 +45,15 @@ public class STArray extends ArrayList<STObject> implements SerializedType {
         }
     }
 
+    @Override
+    public int encodedSize() {
+        int size = 0;
+        for (STObject stObject : this) {
+            size += stObject.encodedSize();
+        }
+        return size;
+    }
+
     @Override
     public Type type() {
         return Type.STArray;
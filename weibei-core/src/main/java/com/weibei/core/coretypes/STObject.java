@@ -17,13 +17,240 @@ import com.weibei.core.serialized.enums.LedgerEntryType;
 import com.weibei.core.serialized.enums.TransactionType;
 import org.json.JSONObject;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
 import java.util.EnumMap;
 import java.util.Iterator;
-import java.util.TreeMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 public class STObject implements SerializedType, Iterable<Field> {
-    // Internally the fields are stored in a TreeMap
-    public static class FieldsMap extends TreeMap<Field, SerializedType> {}
+    /**
+     * The fields, in Field (canonical) order, stored in sorted parallel
+     * arrays, rather than a TreeMap with an Entry per field. Objects are
+     * small, and are mostly parsed, so fields are put in order and just
+     * get appended, and lookups are a binary search on the ordinal.
+     */
+    public static class FieldsMap extends AbstractMap<Field, SerializedType> {
+        private static final int DEFAULT_CAPACITY = 8;
+
+        private Field[] keys;
+        private SerializedType[] values;
+        private int size = 0;
+        private int modCount = 0;
+
+        public FieldsMap() {
+            this(DEFAULT_CAPACITY);
+        }
+
+        public FieldsMap(int capacity) {
+            keys = new Field[capacity];
+            values = new SerializedType[capacity];
+        }
+
+        private int indexOf(Object key) {
+            if (!(key instanceof Field)) {
+                return -1;
+            }
+            int ordinal = ((Field) key).ordinal();
+            // Parsed objects are put in order, so check the end first
+            if (size > 0 && keys[size - 1].ordinal() < ordinal) {
+                return -(size + 1);
+            }
+            int lo = 0, hi = size - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int midOrdinal = keys[mid].ordinal();
+                if (midOrdinal < ordinal) {
+                    lo = mid + 1;
+                } else if (midOrdinal > ordinal) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(lo + 1);
+        }
+
+        @Override
+        public SerializedType get(Object key) {
+            int i = indexOf(key);
+            return i >= 0 ? values[i] : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return indexOf(key) >= 0;
+        }
+
+        @Override
+        public SerializedType put(Field key, SerializedType value) {
+            if (key == null) {
+                throw new NullPointerException();
+            }
+            int i = indexOf(key);
+            if (i >= 0) {
+                SerializedType old = values[i];
+                values[i] = value;
+                return old;
+            }
+            i = -(i + 1);
+            if (size == keys.length) {
+                int capacity = Math.max(DEFAULT_CAPACITY, size + (size >> 1));
+                keys = Arrays.copyOf(keys, capacity);
+                values = Arrays.copyOf(values, capacity);
+            }
+            System.arraycopy(keys, i, keys, i + 1, size - i);
+            System.arraycopy(values, i, values, i + 1, size - i);
+            keys[i] = key;
+            values[i] = value;
+            size++;
+            modCount++;
+            return null;
+        }
+
+        @Override
+        public SerializedType remove(Object key) {
+            int i = indexOf(key);
+            if (i < 0) {
+                return null;
+            }
+            SerializedType old = values[i];
+            removeAt(i);
+            return old;
+        }
+
+        private void removeAt(int i) {
+            System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+            System.arraycopy(values, i + 1, values, i, size - i - 1);
+            size--;
+            keys[size] = null;
+            values[size] = null;
+            modCount++;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void clear() {
+            Arrays.fill(keys, 0, size, null);
+            Arrays.fill(values, 0, size, null);
+            size = 0;
+            modCount++;
+        }
+
+        public Field firstKey() {
+            if (size == 0) {
+                throw new NoSuchElementException();
+            }
+            return keys[0];
+        }
+
+        public void trimToSize() {
+            if (size < keys.length) {
+                keys = Arrays.copyOf(keys, size);
+                values = Arrays.copyOf(values, size);
+            }
+        }
+
+        private abstract class FieldsIterator<T> implements Iterator<T> {
+            int next = 0;
+            int last = -1;
+            int expectedModCount = modCount;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            int nextIndex() {
+                if (modCount != expectedModCount) {
+                    throw new ConcurrentModificationException();
+                }
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                last = next++;
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                if (last < 0) {
+                    throw new IllegalStateException();
+                }
+                if (modCount != expectedModCount) {
+                    throw new ConcurrentModificationException();
+                }
+                removeAt(last);
+                next = last;
+                last = -1;
+                expectedModCount = modCount;
+            }
+        }
+
+        @Override
+        public Set<Field> keySet() {
+            return new AbstractSet<Field>() {
+                @Override
+                public Iterator<Field> iterator() {
+                    return new FieldsIterator<Field>() {
+                        @Override
+                        public Field next() {
+                            return keys[nextIndex()];
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+
+                @Override
+                public boolean contains(Object o) {
+                    return containsKey(o);
+                }
+
+                @Override
+                public boolean remove(Object o) {
+                    return FieldsMap.this.remove(o) != null;
+                }
+            };
+        }
+
+        @Override
+        public Set<Entry<Field, SerializedType>> entrySet() {
+            return new AbstractSet<Entry<Field, SerializedType>>() {
+                @Override
+                public Iterator<Entry<Field, SerializedType>> iterator() {
+                    return new FieldsIterator<Entry<Field, SerializedType>>() {
+                        @Override
+                        public Entry<Field, SerializedType> next() {
+                            final int i = nextIndex();
+                            return new SimpleEntry<Field, SerializedType>(keys[i], values[i]) {
+                                @Override
+                                public SerializedType setValue(SerializedType value) {
+                                    values[i] = value;
+                                    return super.setValue(value);
+                                }
+                            };
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+    }
     // There's no nice predicates
     public static interface FieldFilter {
         boolean evaluate(Field a);
@@ -275,10 +502,10 @@ public class STObject implements SerializedType, Iterable<Field> {
     public void toBytesSink(BytesSink to, FieldFilter p) {
         BinarySerializer serializer = new BinarySerializer(to);
 
-        for (Field field : this) {
+        for (int i = 0; i < fields.size; i++) {
+            Field field = fields.keys[i];
             if (p.evaluate(field)) {
-                SerializedType value = fields.get(field);
-                serializer.add(field, value);
+                serializer.add(field, fields.values[i]);
             }
         }
     }
@@ -292,6 +519,18 @@ public class STObject implements SerializedType, Iterable<Field> {
         });
     }
 
+    @Override
+    public int encodedSize() {
+        int size = 0;
+        for (int i = 0; i < fields.size; i++) {
+            Field field = fields.keys[i];
+            if (field.isSerialized()) {
+                size += BinarySerializer.encodedSize(field, fields.values[i]);
+            }
+        }
+        return size;
+    }
+
     @Override
     public Type type() {
         return Type.STObject;
@@ -326,6 +565,7 @@ public class STObject implements SerializedType, Iterable<Field> {
                 }
                 so.put(field, st);
             }
+            so.fields.trimToSize();
 
             return STObject.formatted(so);
         }
@@ -47,6 +47,11 @@ public class Vector256 extends ArrayList<Hash256> implements SerializedType {
         }
     }
 
+    @Override
+    public int encodedSize() {
+        return size() * 32;
+    }
+
     @Override
     public Type type() {
         return Type.Vector256;
@@ -54,6 +54,11 @@ abstract public class Hash<Subclass extends Hash> implements SerializedType, Com
         return hash;
     }
 
+    @Override
+    public int encodedSize() {
+        return hash.length;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj instanceof Hash) {
@@ -45,6 +45,11 @@ abstract public class UInt<Subclass extends UInt> extends Number implements Seri
     public UInt() {}
 
     public abstract int getByteWidth();
+
+    @Override
+    public int encodedSize() {
+        return getByteWidth();
+    }
     public abstract Subclass instanceFrom(BigInteger n);
 
     public boolean isValid(BigInteger n) {
@@ -204,7 +209,11 @@ abstract public class UInt<Subclass extends UInt> extends Number implements Seri
 
         @Override
         public T fromParser(BinaryParser parser, Integer hint) {
-            return newInstance(new BigInteger(1, parser.read(byteWidth())));
+            int width = byteWidth();
+            if (width < 8) {
+                return newInstance(BigInteger.valueOf(parser.readUIntN(width)));
+            }
+            return newInstance(new BigInteger(1, parser.read(width)));
         }
 
         @Override
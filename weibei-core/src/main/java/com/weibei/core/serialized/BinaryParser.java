@@ -35,6 +35,18 @@ public class BinaryParser {
         return ret;
     }
 
+    /**
+     * Reads a big endian unsigned int of `width` (at most 8) bytes, without
+     * allocating. A width of 8 can come back negative.
+     */
+    public long readUIntN(int width) {
+        long value = 0;
+        for (int i = 0; i < width; i++) {
+            value = (value << 8) | readOneInt();
+        }
+        return value;
+    }
+
     public Field readField() {
         int fieldCode = readFieldCode();
         Field field = Field.fromCode(fieldCode);
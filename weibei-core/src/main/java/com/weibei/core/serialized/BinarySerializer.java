@@ -3,8 +3,6 @@ package com.weibei.core.serialized;
 import com.weibei.core.fields.Field;
 import com.weibei.core.fields.Type;
 
-import java.util.Arrays;
-
 public class BinarySerializer {
     private final BytesSink sink;
 
@@ -17,32 +15,26 @@ public class BinarySerializer {
     }
 
     public void addLengthEncoded(byte[] n) {
-        add(encodeVL(n.length));
+        addVL(n.length);
         add(n);
     }
 
     public static byte[] encodeVL(int  length) {
-        // TODO: bytes
-        byte[] lenBytes = new byte[4];
-
         if (length <= 192)
         {
-            lenBytes[0] = (byte) (length);
-            return Arrays.copyOf(lenBytes, 1);
+            return new byte[]{(byte) length};
         }
         else if (length <= 12480)
         {
             length -= 193;
-            lenBytes[0] = (byte) (193 + (length >>> 8));
-            lenBytes[1] = (byte) (length & 0xff);
-            return Arrays.copyOf(lenBytes, 2);
+            return new byte[]{(byte) (193 + (length >>> 8)),
+                              (byte) (length & 0xff)};
         }
         else if (length <= 918744) {
             length -= 12481;
-            lenBytes[0] = (byte) (241 + (length >>> 16));
-            lenBytes[1] = (byte) ((length >> 8) & 0xff);
-            lenBytes[2] = (byte) (length & 0xff);
-            return Arrays.copyOf(lenBytes, 3);
+            return new byte[]{(byte) (241 + (length >>> 16)),
+                              (byte) ((length >> 8) & 0xff),
+                              (byte) (length & 0xff)};
         } else {
             throw new RuntimeException("Overflow error");
         }
@@ -68,7 +60,7 @@ public class BinarySerializer {
     }
 
     public void addLengthEncoded(BytesList bytes) {
-        add(encodeVL(bytes.bytesLength()));
+        addVL(bytes.bytesLength());
         add(bytes);
     }
 
@@ -86,9 +78,62 @@ public class BinarySerializer {
         }
     }
 
+    public void add(BytesBuffer bytes) {
+        bytes.writeTo(sink);
+    }
+
+    public void addLengthEncoded(BytesBuffer bytes) {
+        addVL(bytes.bytesLength());
+        add(bytes);
+    }
+
     public void addLengthEncoded(SerializedType value) {
-        BytesList bytes = new BytesList();
-        value.toBytesSink(bytes);
-        addLengthEncoded(bytes);
+        addVL(value.encodedSize());
+        value.toBytesSink(sink);
+    }
+
+    public void addVL(int length) {
+        if (sink instanceof BytesBuffer) {
+            // Saves allocating the prefix
+            BytesBuffer buffer = (BytesBuffer) sink;
+            if (length <= 192) {
+                buffer.add((byte) length);
+                return;
+            } else if (length <= 12480) {
+                length -= 193;
+                buffer.add((byte) (193 + (length >>> 8)));
+                buffer.add((byte) (length & 0xff));
+                return;
+            }
+        }
+        add(encodeVL(length));
+    }
+
+    public static int vlEncodedSize(int length) {
+        if (length <= 192) {
+            return 1;
+        } else if (length <= 12480) {
+            return 2;
+        } else if (length <= 918744) {
+            return 3;
+        } else {
+            throw new RuntimeException("Overflow error");
+        }
+    }
+
+    /**
+     * @return the number of bytes add(field, value) adds
+     */
+    public static int encodedSize(Field field, SerializedType value) {
+        int size = field.getBytes().length;
+        int valueSize = value.encodedSize();
+        if (field.isVLEncoded()) {
+            size += vlEncodedSize(valueSize);
+        } else if (field.getType() == Type.STObject) {
+            size += Field.ObjectEndMarker.getBytes().length;
+        } else if (field.getType() == Type.STArray) {
+            size += Field.ArrayEndMarker.getBytes().length;
+        }
+        return size + valueSize;
     }
 }
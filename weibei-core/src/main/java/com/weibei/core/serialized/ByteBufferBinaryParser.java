@@ -0,0 +1,166 @@
+package com.weibei.core.serialized;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A BinaryParser over a ByteBuffer, which can be direct or memory mapped,
+ * so nothing is copied onto the heap but what's decoded. slice(n) returns a
+ * view of the next n bytes, without copying them at all.
+ *
+ * fromFile maps a file a window at a time, so it can be bigger than the 2GB
+ * a single MappedByteBuffer can hold. The window is moved on whenever a read
+ * would run past its end, so it must be at least as big as anything read in
+ * one go.
+ *
+ * pos() is an int, so wraps for files over 2GB. Positions are only ever
+ * compared relative to each other (see end(Integer)), which still works as
+ * long as they are less than 2GB apart.
+ */
+public class ByteBufferBinaryParser extends BinaryParser implements Closeable {
+    public static final int DEFAULT_WINDOW_BYTES = 256 * 1024 * 1024;
+
+    private ByteBuffer buffer;
+    // Where the buffer starts, in the file
+    private long offset = 0;
+    private final long length;
+
+    // null unless mapping a file
+    private final FileChannel channel;
+    private final int windowBytes;
+
+    public ByteBufferBinaryParser(ByteBuffer buffer) {
+        super(buffer.remaining());
+        this.buffer = buffer.slice();
+        this.channel = null;
+        this.length = buffer.remaining();
+        this.windowBytes = 0;
+    }
+
+    private ByteBufferBinaryParser(FileChannel channel, int windowBytes) throws IOException {
+        super((int) Math.min(channel.size(), Integer.MAX_VALUE));
+        this.channel = channel;
+        this.length = channel.size();
+        this.windowBytes = windowBytes;
+        this.buffer = map(0, windowBytes);
+    }
+
+    public static ByteBufferBinaryParser fromFile(String path) {
+        return fromFile(new File(path), DEFAULT_WINDOW_BYTES);
+    }
+
+    public static ByteBufferBinaryParser fromFile(File file, int windowBytes) {
+        try {
+            return new ByteBufferBinaryParser(new RandomAccessFile(file, "r").getChannel(), windowBytes);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void skip(int n) {
+        ensure(n);
+        buffer.position(buffer.position() + n);
+    }
+
+    @Override
+    public byte readOne() {
+        ensure(1);
+        return buffer.get();
+    }
+
+    @Override
+    public byte[] read(int n) {
+        ensure(n);
+        byte[] ret = new byte[n];
+        buffer.get(ret);
+        return ret;
+    }
+
+    @Override
+    public long readUIntN(int width) {
+        ensure(width);
+        switch (width) {
+            case 1:
+                return buffer.get() & 0xFFL;
+            case 2:
+                return buffer.getShort() & 0xFFFFL;
+            case 4:
+                return buffer.getInt() & 0xFFFFFFFFL;
+            default:
+                return super.readUIntN(width);
+        }
+    }
+
+    /**
+     * @return a read only view of the next n bytes, only valid for as long
+     *         as the underlying buffer (or mapping) is
+     */
+    public ByteBuffer slice(int n) {
+        ensure(n);
+        ByteBuffer view = buffer.slice();
+        view.limit(n);
+        buffer.position(buffer.position() + n);
+        return view.asReadOnlyBuffer();
+    }
+
+    @Override
+    public boolean end() {
+        return position() >= length;
+    }
+
+    @Override
+    public boolean end(Integer customEnd) {
+        return end() || customEnd != null && pos() - customEnd >= 0;
+    }
+
+    @Override
+    public int pos() {
+        return (int) position();
+    }
+
+    @Override
+    public int size() {
+        // So size() - pos() is what's left, clamped to an int
+        return pos() + (int) Math.min(length - position(), Integer.MAX_VALUE);
+    }
+
+    public long position() {
+        return offset + buffer.position();
+    }
+
+    /**
+     * Closes the file, if mapping one. What's been mapped stays readable.
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    private void ensure(int n) {
+        if (buffer.remaining() >= n || channel == null) {
+            return;
+        }
+        long position = position();
+        if (position + n > length) {
+            throw new IllegalStateException("Expected " + n + " more bytes at " + position);
+        }
+        try {
+            buffer = map(position, Math.max(windowBytes, n));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private ByteBuffer map(long position, int bytes) throws IOException {
+        offset = position;
+        return channel.map(FileChannel.MapMode.READ_ONLY, position,
+                           Math.min(bytes, length - position));
+    }
+}
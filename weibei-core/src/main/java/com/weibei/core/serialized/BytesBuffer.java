@@ -0,0 +1,144 @@
+package com.weibei.core.serialized;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A BytesSink writing into one contiguous, growable array, which, unlike a
+ * BytesList, doesn't keep an array per add(), and can be reset() and
+ * reused.
+ *
+ * acquire() takes a buffer from a small per thread pool, and release()
+ * gives it back, for the many short lived buffers serializing needs. A
+ * buffer mustn't be used once released.
+ */
+public class BytesBuffer implements BytesSink {
+    public static final int DEFAULT_CAPACITY = 256;
+    // Bigger buffers aren't pooled, so one huge object doesn't pin memory
+    static final int MAX_POOLED_CAPACITY = 64 * 1024;
+    static final int MAX_POOLED = 8;
+
+    private static final ThreadLocal<ArrayDeque<BytesBuffer>> pool =
+            new ThreadLocal<ArrayDeque<BytesBuffer>>() {
+                @Override
+                protected ArrayDeque<BytesBuffer> initialValue() {
+                    return new ArrayDeque<BytesBuffer>();
+                }
+            };
+
+    private byte[] buffer;
+    private int len = 0;
+
+    public BytesBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public BytesBuffer(int capacity) {
+        buffer = new byte[capacity];
+    }
+
+    private BytesBuffer(byte[] into) {
+        buffer = into;
+    }
+
+    /**
+     * Serializes `value` in one pass, straight into an array of its
+     * encodedSize().
+     */
+    public static byte[] serialize(SerializedType value) {
+        byte[] bytes = new byte[value.encodedSize()];
+        BytesBuffer to = new BytesBuffer(bytes);
+        value.toBytesSink(to);
+        if (to.buffer != bytes || to.len != bytes.length) {
+            throw new IllegalStateException(value.type() + " encodedSize() is " +
+                    bytes.length + " but " + to.len + " bytes were written");
+        }
+        return bytes;
+    }
+
+    public static BytesBuffer acquire() {
+        BytesBuffer buffer = pool.get().poll();
+        return buffer == null ? new BytesBuffer() : buffer;
+    }
+
+    public void release() {
+        ArrayDeque<BytesBuffer> buffers = pool.get();
+        if (buffer.length <= MAX_POOLED_CAPACITY && buffers.size() < MAX_POOLED) {
+            reset();
+            buffers.push(this);
+        }
+    }
+
+    public void reset() {
+        len = 0;
+    }
+
+    @Override
+    public void add(byte aByte) {
+        ensureCapacity(len + 1);
+        buffer[len++] = aByte;
+    }
+
+    @Override
+    public void add(byte[] bytes) {
+        add(bytes, 0, bytes.length);
+    }
+
+    public void add(byte[] bytes, int offset, int length) {
+        ensureCapacity(len + length);
+        System.arraycopy(bytes, offset, buffer, len, length);
+        len += length;
+    }
+
+    public void add(BytesBuffer other) {
+        add(other.buffer, 0, other.len);
+    }
+
+    public int bytesLength() {
+        return len;
+    }
+
+    public byte[] bytes() {
+        return Arrays.copyOf(buffer, len);
+    }
+
+    public String bytesHex() {
+        char[] hex = new char[len * 2];
+        for (int i = 0; i < len; i++) {
+            String s = BytesList.hexLookup[buffer[i] & 0xFF];
+            hex[i * 2] = s.charAt(0);
+            hex[i * 2 + 1] = s.charAt(1);
+        }
+        return new String(hex);
+    }
+
+    public void writeTo(BytesSink sink) {
+        if (sink instanceof BytesBuffer) {
+            ((BytesBuffer) sink).add(this);
+        } else {
+            sink.add(bytes());
+        }
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, len);
+    }
+
+    public void writeTo(ByteBuffer out) {
+        out.put(buffer, 0, len);
+    }
+
+    public void updateDigest(MessageDigest digest) {
+        digest.update(buffer, 0, len);
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(needed, buffer.length * 2));
+        }
+    }
+}
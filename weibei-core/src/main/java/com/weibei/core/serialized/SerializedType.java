@@ -7,5 +7,7 @@ public interface SerializedType {
     byte[] toBytes();
     String toHex();
     void toBytesSink(BytesSink to);
+    // The number of bytes toBytesSink adds
+    int encodedSize();
     Type type();
 }
@@ -3,77 +3,213 @@ package com.weibei.core.serialized;
 import java.io.*;
 import java.util.zip.GZIPInputStream;
 
-public class StreamBinaryParser extends BinaryParser {
-    final BufferedInputStream stream;
+/**
+ * A BinaryParser reading from an InputStream, through its own buffer, so
+ * single bytes and small fixed width values are read without allocating.
+ *
+ * The length of the stream needn't be known up front, end() is true once
+ * the stream is exhausted. Compressed files are read that way, as the size
+ * recorded in a gzip trailer is only the uncompressed size mod 2^32.
+ *
+ * Positions are longs, see position(). pos() wraps for streams over 2GB,
+ * which is fine for comparing positions less than 2GB apart, see
+ * end(Integer).
+ */
+public class StreamBinaryParser extends BinaryParser implements Closeable {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
 
+    final InputStream stream;
+    // -1 if unknown
+    private final long length;
+    private final byte[] buffer;
+    private int bufferPos = 0;
+    private int bufferLimit = 0;
+    // Where the buffer starts in the stream
+    private long offset = 0;
+    private boolean eof = false;
+
+    public StreamBinaryParser(InputStream stream) {
+        this(stream, -1);
+    }
+
+    /**
+     * @param size the length of the stream, or -1 if not known
+     */
     public StreamBinaryParser(InputStream stream, long size) {
-        super((int) size);
-        this.stream = new BufferedInputStream(stream);
+        this(stream, size, DEFAULT_BUFFER_SIZE);
+    }
+
+    public StreamBinaryParser(InputStream stream, long size, int bufferSize) {
+        super((int) Math.min(Math.max(size, 0), Integer.MAX_VALUE));
+        this.stream = stream;
+        this.length = size;
+        this.buffer = new byte[bufferSize];
     }
 
     private static boolean isGZip(File fio) {
         return fio.getName().endsWith("gz");
     }
-    private static int getUncompressedSize(File fio) {
-        if (isGZip(fio)) {
-            int val;
+
+    @Override
+    public void skip(int n) {
+        int buffered = Math.min(n, bufferLimit - bufferPos);
+        bufferPos += buffered;
+        n -= buffered;
+        while (n > 0) {
             try {
-                RandomAccessFile raf = new RandomAccessFile(fio, "r");
-                raf.seek(raf.length() - 4);
-                int b4 = raf.read();
-                int b3 = raf.read();
-                int b2 = raf.read();
-                int b1 = raf.read();
-                val = (b1 << 24) | (b2 << 16) + (b3 << 8) + b4;
-                raf.close();
+                long skipped = stream.skip(n);
+                if (skipped > 0) {
+                    offset += skipped;
+                    n -= skipped;
+                } else {
+                    // Some streams won't skip, or are at their end
+                    fill();
+                    int read = Math.min(n, bufferLimit);
+                    bufferPos = read;
+                    n -= read;
+                }
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
-            return val;
-        } else {
-            return (int) fio.length();
         }
     }
 
-    public void skip(int n) {
-        try {
-            long skipped = stream.skip(n);
-            if (skipped != n) {
-                throw new RuntimeException("Expected to skip more bytes");
+    @Override
+    public byte readOne() {
+        if (bufferPos == bufferLimit) {
+            fill();
+        }
+        return buffer[bufferPos++];
+    }
+
+    @Override
+    public byte[] read(int n) {
+        byte[] ret = new byte[n];
+        int copied = 0;
+        while (copied < n) {
+            if (bufferPos == bufferLimit) {
+                // Too big to be worth buffering, read straight into ret
+                if (n - copied >= buffer.length) {
+                    copied += readDirect(ret, copied, n - copied);
+                    continue;
+                }
+                fill();
             }
+            int chunk = Math.min(n - copied, bufferLimit - bufferPos);
+            System.arraycopy(buffer, bufferPos, ret, copied, chunk);
+            bufferPos += chunk;
+            copied += chunk;
+        }
+        return ret;
+    }
+
+    @Override
+    public long readUIntN(int width) {
+        if (bufferLimit - bufferPos < width) {
+            return super.readUIntN(width);
+        }
+        long value = 0;
+        for (int i = 0; i < width; i++) {
+            value = (value << 8) | (buffer[bufferPos++] & 0xFF);
+        }
+        return value;
+    }
+
+    @Override
+    public boolean end() {
+        return bufferPos == bufferLimit && !tryFill();
+    }
 
+    @Override
+    public boolean end(Integer customEnd) {
+        return end() || customEnd != null && pos() - customEnd >= 0;
+    }
+
+    @Override
+    public int pos() {
+        return (int) position();
+    }
+
+    @Override
+    public int size() {
+        // So size() - pos() is what's left, clamped to an int
+        long left = length == -1 ? Integer.MAX_VALUE : length - position();
+        return pos() + (int) Math.min(left, Integer.MAX_VALUE);
+    }
+
+    public long position() {
+        return offset + bufferPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        stream.close();
+    }
+
+    private void fill() {
+        if (!tryFill()) {
+            throw new RuntimeException("Expected to read more bytes");
+        }
+    }
+
+    /**
+     * Refills the (consumed) buffer, reading until there's at least one
+     * byte, as streams like GZIPInputStream can return short, or no, reads
+     * before their end.
+     *
+     * @return false at the end of the stream
+     */
+    private boolean tryFill() {
+        if (eof) {
+            return false;
+        }
+        offset += bufferLimit;
+        bufferPos = 0;
+        bufferLimit = 0;
+        try {
+            while (bufferLimit == 0) {
+                int read = stream.read(buffer, 0, buffer.length);
+                if (read == -1) {
+                    eof = true;
+                    return false;
+                }
+                bufferLimit = read;
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        return true;
     }
-    public byte readOne() {
-        return read(1)[0];
-    }
-    public byte[] read(int n) {
-        byte[] ret = new byte[n];
+
+    private int readDirect(byte[] into, int off, int n) {
+        offset += bufferLimit;
+        bufferPos = 0;
+        bufferLimit = 0;
+        int total = 0;
         try {
-            int read = stream.read(ret);
-            if (read != n) {
-                throw new RuntimeException("Expected to read more bytes");
+            while (total < n) {
+                int read = stream.read(into, off + total, n - total);
+                if (read == -1) {
+                    eof = true;
+                    throw new RuntimeException("Expected to read more bytes");
+                }
+                total += read;
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        cursor += n;
-        return ret;
+        offset += total;
+        return total;
     }
+
     public static StreamBinaryParser fromFile(String path) {
         try {
             File f = new File(path);
             FileInputStream fstream = new FileInputStream(path);
-            InputStream stream = fstream;
-            long s = fstream.getChannel().size();
-
             if (isGZip(f)) {
-                s = getUncompressedSize(f);
-                stream = new GZIPInputStream(fstream);
+                return new StreamBinaryParser(new GZIPInputStream(fstream, DEFAULT_BUFFER_SIZE));
             }
-            return new StreamBinaryParser(stream, s);
+            return new StreamBinaryParser(fstream, fstream.getChannel().size());
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
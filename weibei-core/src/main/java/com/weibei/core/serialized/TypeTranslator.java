@@ -119,14 +119,16 @@ public abstract class TypeTranslator<T extends SerializedType> {
     }
 
     public byte[] toBytes(T obj) {
-        BytesList to = new BytesList();
-        toBytesSink(obj, to);
-        return to.bytes();
+        return BytesBuffer.serialize(obj);
     }
 
     public String toHex(T obj) {
-        BytesList to = new BytesList();
-        toBytesSink(obj, to);
-        return to.bytesHex();
+        BytesBuffer to = BytesBuffer.acquire();
+        try {
+            toBytesSink(obj, to);
+            return to.bytesHex();
+        } finally {
+            to.release();
+        }
     }
 }
@@ -151,6 +151,11 @@ public enum EngineResult implements SerializedType
         to.add((byte) ord);
     }
 
+    @Override
+    public int encodedSize() {
+        return 1;
+    }
+
     @Override
     public Object toJSON() {
         return toString();
@@ -66,6 +66,11 @@ public enum LedgerEntryType implements SerializedType{
     public void toBytesSink(BytesSink to) {
         to.add(toBytes());
     }
+
+    @Override
+    public int encodedSize() {
+        return 2;
+    }
     public static class Translator extends TypeTranslator<LedgerEntryType> {
         @Override
         public LedgerEntryType fromParser(BinaryParser parser, Integer hint) {
@@ -71,6 +71,11 @@ public enum TransactionType implements SerializedType {
     public void toBytesSink(BytesSink to) {
         to.add(toBytes());
     }
+
+    @Override
+    public int encodedSize() {
+        return 2;
+    }
     public static class Translator extends TypeTranslator<TransactionType> {
         @Override
         public TransactionType fromParser(BinaryParser parser, Integer hint) {
@@ -8,7 +8,7 @@ import com.weibei.core.coretypes.hash.Hash256;
 import com.weibei.core.coretypes.hash.prefixes.HashPrefix;
 import com.weibei.core.coretypes.uint.UInt32;
 import com.weibei.core.fields.Field;
-import com.weibei.core.serialized.BytesList;
+import com.weibei.core.serialized.BytesBuffer;
 import com.weibei.core.serialized.MultiSink;
 import com.weibei.core.serialized.SerializedType;
 import com.weibei.core.serialized.enums.TransactionType;
@@ -87,7 +87,7 @@ public class SignedTransaction {
         try {
             txn.txnSignature(new Blob(keyPair.sign(signingHash.bytes())));
 
-            BytesList blob = new BytesList();
+            BytesBuffer blob = new BytesBuffer(txn.encodedSize());
             HalfSha512 id = HalfSha512.prefixed256(HashPrefix.transactionID);
 
             txn.toBytesSink(new MultiSink(blob, id));
@@ -12,11 +12,12 @@ import com.weibei.core.types.known.sle.entries.DirectoryNode;
 import com.weibei.core.types.known.sle.entries.OfferDirectory;
 import org.json.JSONArray;
 import org.json.JSONObject;
-import org.json.JSONTokener;
 import org.json.JSONWriter;
 
+import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
 
 public class AccountState extends ShaMap {
@@ -67,18 +68,23 @@ public class AccountState extends ShaMap {
     }
 
     private LedgerHashes createOrUpdateSkipList(Hash256 skipIndex) {
-        PathToIndex path = pathToIndex(skipIndex);
-        ShaMapInner top = path.dirtyOrCopyInners();
-        LedgerEntryItem item;
-
-        if (path.hasMatchedLeaf()) {
-            ShaMapLeaf leaf = path.invalidatedPossiblyCopiedLeafForUpdating();
-            item = (LedgerEntryItem) leaf.item;
-        } else {
-            item = new LedgerEntryItem(newSkipList(skipIndex));
-            top.addLeafToTerminalInner(new ShaMapLeaf(skipIndex, item));
+        PathToIndex path = PathToIndex.reuse(this, skipIndex);
+        LedgerEntry entry;
+
+        try {
+            ShaMapInner top = path.dirtyOrCopyInners();
+            if (path.hasMatchedLeaf()) {
+                ShaMapLeaf leaf = path.invalidatedPossiblyCopiedLeafForUpdating();
+                entry = entryForUpdating(leaf);
+            } else {
+                entry = newSkipList(skipIndex);
+                LedgerEntryItem item = new LedgerEntryItem(entry);
+                top.addLeafToTerminalInner(new ShaMapLeaf(skipIndex, item), listener());
+            }
+        } finally {
+            path.release();
         }
-        return (LedgerHashes) item.entry;
+        return (LedgerHashes) entry;
     }
 
     public boolean addLE(LedgerEntry entry) {
@@ -91,9 +97,17 @@ public class AccountState extends ShaMap {
         return updateItem(entry.index(), item);
     }
 
+    /**
+     * @return the entry at `index`, use getLeafForUpdating and
+     *         entryForUpdating to modify it, so the hashes are invalidated
+     */
     public LedgerEntry getLE(Hash256 index) {
-        LedgerEntryItem item = (LedgerEntryItem) getItem(index);
-        return item == null ? null : item.value();
+        ShaMapLeaf leaf = getLeaf(index);
+        return leaf == null ? null : (LedgerEntry) leaf.item.value();
+    }
+
+    public static LedgerEntry entryForUpdating(ShaMapLeaf leaf) {
+        return (LedgerEntry) leaf.item.value();
     }
 
     public DirectoryNode getDirectoryNode(Hash256 index) {
@@ -145,98 +159,34 @@ public class AccountState extends ShaMap {
     // Assumes shamap won't be modified during iteration, not unusual for an
     // iterator.
     public class QualityIterator implements Iterator<LedgerEntry> {
-        ShaMapInner[] inners = new ShaMapInner[64];
+        ShaMapCursor cursor = cursor();
         Hash256 base;
-        Hash256 end;
-        int[] selections = new int[64];
-        int commonNibblets;
-        int depth;
-        ShaMapLeaf next;
-        private boolean finished = false;
+        boolean started = false;
+        boolean valid = false;
 
         public QualityIterator(Hash256 start) {
             base = start;
-            depth=0;
-            end = Index.bookEnd(start);
-            ShaMapInner inner = AccountState.this;
-            setInner(inner);
-            setSelected(start.nibblet(depth));
-            findCommonNibblets();
-        }
-
-        private void findCommonNibblets() {
-            for (int i = 0; i < 64; i++) {
-                if (base.nibblet(i) == end.nibblet(i)) {
-                    commonNibblets = i;
-                } else {
-                    break;
-                }
-            }
-        }
-
-        private void setInner(ShaMapInner inner) {
-            inners[depth] = inner;
-        }
-
-        private void findNext() {
-            next = null;
-
-            while (true) {
-                while (selected() > 15) {
-                    depth--;
-                    incrementSelection();
-                }
-                if (depth < commonNibblets && selected() > end.nibblet(depth)) {
-                    finished = true;
-                    break;
-                }
-                ShaMapInner current = currentInner();
-                ShaMapNode branch = current.getBranch(selected());
-                if (branch == null) {
-                    incrementSelection();
-                } else if (branch.isInner()) {
-                    depth++;
-                    setInner(branch.asInner());
-                    setSelected(base.nibblet(depth));
-                } else if (branch.isLeaf()) {
-                    ShaMapLeaf leaf = branch.asLeaf();
-                    Hash256 leafIndex = leaf.index;
-                    boolean leafIsOnPathToBase = depth < commonNibblets;
-                    if ( leafIsOnPathToBase || leafIndex.compareTo(base) > 0 &&
-                                               leafIndex.compareTo(end) < 0) {
-                        next = leaf;
-                        incrementSelection();
-                    } else {
-                        finished = true;
-                    }
-                    break;
-                }
-            }
-        }
-
-        private ShaMapInner currentInner() {
-            return inners[depth];
-        }
-        private int selected() {
-            return selections[depth];
-        }
-        private void setSelected(int nibblet) {
-            selections[depth] = nibblet;
-        }
-        private void incrementSelection() {
-            selections[depth]++;
+            cursor.setUpperBound(Index.bookEnd(start));
         }
 
         @Override
         public boolean hasNext() {
-            findNext();
-            return !finished && next != null;
+            // Like it always has, this moves to the next entry
+            if (!started) {
+                started = true;
+                valid = cursor.seek(base);
+                if (valid && cursor.index().equals(base)) {
+                    valid = cursor.next();
+                }
+            } else if (valid) {
+                valid = cursor.next();
+            }
+            return valid;
         }
         @Override
         public LedgerEntry next() {
             // Just assume hasNext has been called
-            LedgerEntryItem item = (LedgerEntryItem) next.item;
-            return item.entry;
+            return (LedgerEntry) cursor.leaf().item.value();
         }
         @Override
         public void remove() {
@@ -275,15 +225,22 @@ public class AccountState extends ShaMap {
         walkLeaves(new LeafWalker() {
             @Override
             public void onLeaf(ShaMapLeaf leaf) {
-                LedgerEntryItem item = (LedgerEntryItem) leaf.item;
-                walker.onEntry(item.entry);
+                walker.onEntry((LedgerEntry) leaf.item.value());
             }
         });
     }
 
-    // TODO
+    /**
+     * @return the first index after `nextIndex`, and before `bookEnd`, or
+     *         null if there isn't one
+     */
     public Hash256 getNextIndex(Hash256 nextIndex, Hash256 bookEnd) {
-        return null;
+        ShaMapCursor cursor = cursor().setUpperBound(bookEnd);
+        boolean found = cursor.seek(nextIndex);
+        if (found && cursor.index().equals(nextIndex)) {
+            found = cursor.next();
+        }
+        return found ? cursor.index() : null;
     }
 
     @Override
@@ -292,27 +249,69 @@ public class AccountState extends ShaMap {
     }
 
     public static AccountState loadFromLedgerDump(String filePath) throws IOException {
-        FileReader reader = new FileReader(filePath);
-        JSONTokener tokenizer = new JSONTokener(reader);
-        JSONObject ledger = new JSONObject(tokenizer);
-        if (ledger.has("result")) {
-            ledger = ledger.getJSONObject("result");
+        BufferedReader reader = new BufferedReader(new FileReader(filePath), 1 << 16);
+        try {
+            EntryLoader loader = new EntryLoader();
+            new LedgerDumpReader(reader).readAccountState(loader);
+            return loader.finish();
+        } finally {
+            reader.close();
         }
-        if (ledger.has("ledger")) {
-            ledger = ledger.getJSONObject("ledger");
-        }
-        JSONArray array = ledger.getJSONArray("accountState");
-        reader.close();
-        return parseShaMap(array);
+    }
+
+    /**
+     * @return the state with `stateHash` in `store`, with nodes only loaded
+     *         as they are needed and at most (about) `maxCachedNodes` of
+     *         them kept in memory, see NodeLoader
+     */
+    public static AccountState loadFromNodeStore(NodeStore store, Hash256 stateHash, int maxCachedNodes) {
+        return loadFromNodeStore(store, stateHash, maxCachedNodes, null);
+    }
+
+    /**
+     * As above, sharing any subtrees already in `nodeCache` (which can be
+     * null) rather than loading them again, see ShaMapNodeCache
+     */
+    public static AccountState loadFromNodeStore(NodeStore store, Hash256 stateHash, int maxCachedNodes,
+                                                 ShaMapNodeCache nodeCache) {
+        AccountState state = new AccountState();
+        new NodeLoader(store, maxCachedNodes, nodeCache).attach(state, stateHash);
+        return state;
     }
 
     public static AccountState parseShaMap(JSONArray array) {
-        AccountState map = new AccountState();
+        EntryLoader loader = new EntryLoader();
         for (int i = 0; i < array.length(); i++) {
             JSONObject jsonItem = array.getJSONObject(i);
-            map.addLE((LedgerEntry) STObject.fromJSONObject(jsonItem));
+            loader.onEntry((LedgerEntry) STObject.fromJSONObject(jsonItem));
+        }
+        return loader.finish();
+    }
+
+    // Dumps are normally in index order, so most (if not all) entries
+    // can be bulk loaded, and any others are added afterwards. Entries are
+    // only kept as bytes until something looks at them.
+    private static class EntryLoader implements LedgerEntryVisitor {
+        AccountState map = new AccountState();
+        ShaMapBulkLoader loader = new ShaMapBulkLoader(map, false);
+        ArrayList<LedgerEntry> outOfOrder = new ArrayList<LedgerEntry>();
+
+        @Override
+        public void onEntry(LedgerEntry le) {
+            if (loader.accepts(le.index())) {
+                loader.addItem(le.index(), LazyLedgerEntryItem.fromEntry(le));
+            } else {
+                outOfOrder.add(le);
+            }
+        }
+
+        AccountState finish() {
+            loader.finish();
+            for (LedgerEntry le : outOfOrder) {
+                map.addItem(le.index(), LazyLedgerEntryItem.fromEntry(le));
+            }
+            return map;
         }
-        return map;
     }
 
 }
@@ -1,5 +1,7 @@
 package com.weibei.core.types.shamap;
 
+import com.weibei.core.coretypes.STArray;
+import com.weibei.core.coretypes.STObject;
 import com.weibei.core.coretypes.hash.Hash256;
 import com.weibei.core.fields.Field;
 import com.weibei.core.types.known.sle.LedgerEntry;
@@ -19,10 +21,21 @@ public class AccountStateBuilder {
     public long nextTransactionIndex = 0;
     private Hash256 targetAccountHash;
     public long totalTransactions = 0;
+    private ParallelHasher hasher = null;
 
-    private TreeSet<Hash256> directoriesModifiedMoreThanOnceByTransaction = new TreeSet<Hash256>();
-    private TreeSet<Hash256> directoriesModifiedByTransaction = new TreeSet<Hash256>();
+    // All reused, and cleared, rather than reallocated, as onTransaction is
+    // called for every transaction replayed
+    private HashSet<Hash256> directoriesModifiedMoreThanOnceByTransaction = new HashSet<Hash256>();
+    private HashSet<Hash256> directoriesModifiedByTransaction = new HashSet<Hash256>();
+    // Public, and callers rely on it being sorted, so it stays a TreeSet
     public TreeSet<Hash256> modifiedEntries = new TreeSet<Hash256>();
+    // Affected nodes are bucketed by type, DirectoryNodes first, then
+    // WeibeiStates, Offers and the rest, each bucket in meta order
+    private final ArrayList<AffectedNode> affectedNodes = new ArrayList<AffectedNode>();
+    private final ArrayList<AffectedNode> directoryNodes = new ArrayList<AffectedNode>();
+    private final ArrayList<AffectedNode> weibeiStates = new ArrayList<AffectedNode>();
+    private final ArrayList<AffectedNode> offers = new ArrayList<AffectedNode>();
+    private final ArrayList<AffectedNode> otherNodes = new ArrayList<AffectedNode>();
 
     public void resetModified() {
         modifiedEntries.clear();
@@ -42,6 +55,15 @@ public class AccountStateBuilder {
         nextTransactionIndex = 0;
     }
 
+    /**
+     * Carries on from a checkpoint, see AccountStateCheckpointer
+     */
+    void restore(long nextTransactionIndex, long totalTransactions, Hash256 accountHash) {
+        this.nextTransactionIndex = nextTransactionIndex;
+        this.totalTransactions = totalTransactions;
+        this.targetAccountHash = accountHash;
+    }
+
     public void setStateCheckPoint() {
         previousState = state.copy();
     }
@@ -51,7 +73,7 @@ public class AccountStateBuilder {
         if (tr.ledgerIndex.longValue() != targetLedgerIndex + 1) throw new AssertionError(String.format("%d != %d", tr.ledgerIndex.longValue(), targetLedgerIndex + 1));
         nextTransactionIndex++;
         totalTransactions++;
-        directoriesModifiedByTransaction = new TreeSet<Hash256>();
+        directoriesModifiedByTransaction.clear();
 
         for (AffectedNode an : sortedAffectedNodes(tr)) {
             Hash256 id = an.ledgerIndex();
@@ -120,8 +142,7 @@ public class AccountStateBuilder {
             } else if (an.isModifiedNode()) {
                 modifiedEntries.add(id);
                 ShaMapLeaf leaf = state.getLeafForUpdating(id);
-                LedgerEntryItem item = (LedgerEntryItem) leaf.item;
-                LedgerEntry leModded = item.entry;
+                LedgerEntry leModded = AccountState.entryForUpdating(leaf);
 
                 if (le instanceof ThreadedLedgerEntry) {
                     ThreadedLedgerEntry tle = (ThreadedLedgerEntry) le;
@@ -188,35 +209,33 @@ public class AccountStateBuilder {
         }
     }
 
-    public static <E> Collection<E> makeCollection(Iterable<E> iter) {
-        Collection<E> list = new ArrayList<E>();
-        for (E item : iter) {
-            list.add(item);
-        }
-        return list;
-    }
     private ArrayList<AffectedNode> sortedAffectedNodes(TransactionResult tr) {
-        ArrayList<AffectedNode> sorted = new ArrayList<AffectedNode>(makeCollection(tr.meta.affectedNodes()));
-        Collections.sort(sorted, new Comparator<AffectedNode>() {
-            @Override
-            public int compare(AffectedNode o1, AffectedNode o2) {
-                return ord(o1) - ord(o2);
-            }
-
-            private int ord(AffectedNode o1) {
-                switch (o1.ledgerEntryType()) {
-                    case DirectoryNode:
-                        return 1;
-                    case WeibeiState:
-                        return 2;
-                    case Offer:
-                        return 3;
-                    default:
-                        return 4;
-                }
+        for (STObject node : tr.meta.get(STArray.AffectedNodes)) {
+            AffectedNode an = (AffectedNode) node;
+            switch (an.ledgerEntryType()) {
+                case DirectoryNode:
+                    directoryNodes.add(an);
+                    break;
+                case WeibeiState:
+                    weibeiStates.add(an);
+                    break;
+                case Offer:
+                    offers.add(an);
+                    break;
+                default:
+                    otherNodes.add(an);
             }
-        });
-        return sorted;
+        }
+        affectedNodes.clear();
+        affectedNodes.addAll(directoryNodes);
+        affectedNodes.addAll(weibeiStates);
+        affectedNodes.addAll(offers);
+        affectedNodes.addAll(otherNodes);
+        directoryNodes.clear();
+        weibeiStates.clear();
+        offers.clear();
+        otherNodes.clear();
+        return affectedNodes;
     }
 
     private void onDirectoryModified(DirectoryNode dn) {
@@ -245,8 +264,7 @@ public class AccountStateBuilder {
         if (leaf == null) {
             return null;
         }
-        LedgerEntryItem lei = (LedgerEntryItem) leaf.item;
-        return (DirectoryNode) lei.entry;
+        return (DirectoryNode) AccountState.entryForUpdating(leaf);
     }
 
     public AccountState state() {
@@ -276,7 +294,19 @@ public class AccountStateBuilder {
     }
 
     public boolean bad() {
-        return !state.hash().equals(targetAccountHash);
+        return !stateHash().equals(targetAccountHash);
+    }
+
+    /**
+     * @param hasher used to hash the state at ledger close, or null to hash
+     *               on the calling thread
+     */
+    public void setHasher(ParallelHasher hasher) {
+        this.hasher = hasher;
+    }
+
+    private Hash256 stateHash() {
+        return hasher == null ? state.hash() : hasher.hash(state);
     }
 
     public AccountState previousState() {
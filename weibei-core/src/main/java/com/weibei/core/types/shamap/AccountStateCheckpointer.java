@@ -0,0 +1,247 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.core.coretypes.hash.HalfSha512;
+import com.weibei.core.coretypes.hash.Hash256;
+import com.weibei.core.coretypes.hash.prefixes.HashPrefix;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Durable checkpoints of an AccountStateBuilder, so a replay that dies can
+ * carry on from the last one, rather than from a full ledger dump.
+ *
+ * The state's nodes go to a LogStructuredBackend in `directory/nodes`, with
+ * ShaMap#flush, so after the first checkpoint only the nodes changed since
+ * the previous one are written. Then a small CHECKPOINT file, with the
+ * state's hash and where the builder was up to, replaces the last one. The
+ * nodes are forced to disk before the file is renamed into place, so the
+ * file never refers to a state the store doesn't have all of.
+ *
+ * resume() loads the state lazily, so is quick however big the state is,
+ * and a resumed state's next checkpoint only writes what changed since it
+ * was loaded. Only the root node is checked to hash to its key, unless
+ * `verify` is given, when every node reachable from it is read and checked
+ * first.
+ */
+public class AccountStateCheckpointer implements Closeable {
+    static final String CHECKPOINT_FILE = "CHECKPOINT";
+    static final String NODES_DIRECTORY = "nodes";
+
+    private static final long MAGIC = 0x5742434B50543031L; // WBCKPT01
+    private static final int CHECKPOINT_SIZE = 8 + 8 + 8 + 8 + 32 + 32 + 8;
+
+    private final File directory;
+    private final LogStructuredBackend backend;
+    private final NodeStore store;
+
+    public static class Checkpoint {
+        public final long ledgerIndex;
+        public final long nextTransactionIndex;
+        public final long totalTransactions;
+        public final Hash256 stateHash;
+        // null if the builder hadn't seen a ledger close yet
+        public final Hash256 accountHash;
+
+        Checkpoint(long ledgerIndex, long nextTransactionIndex, long totalTransactions,
+                   Hash256 stateHash, Hash256 accountHash) {
+            this.ledgerIndex = ledgerIndex;
+            this.nextTransactionIndex = nextTransactionIndex;
+            this.totalTransactions = totalTransactions;
+            this.stateHash = stateHash;
+            this.accountHash = accountHash;
+        }
+
+        byte[] toBytes() {
+            ByteBuffer buffer = ByteBuffer.allocate(CHECKPOINT_SIZE);
+            buffer.putLong(MAGIC);
+            buffer.putLong(ledgerIndex);
+            buffer.putLong(nextTransactionIndex);
+            buffer.putLong(totalTransactions);
+            buffer.put(stateHash.bytes());
+            buffer.put(accountHash == null ? Hash256.ZERO_256.bytes() : accountHash.bytes());
+            buffer.putLong(crc(buffer.array(), buffer.position()));
+            return buffer.array();
+        }
+
+        static Checkpoint fromBytes(byte[] bytes) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            if (bytes.length != CHECKPOINT_SIZE || buffer.getLong() != MAGIC) {
+                throw new IllegalStateException("Not a checkpoint");
+            }
+            if (crc(bytes, CHECKPOINT_SIZE - 8) != buffer.getLong(CHECKPOINT_SIZE - 8)) {
+                throw new IllegalStateException("Checkpoint is corrupt");
+            }
+            long ledgerIndex = buffer.getLong();
+            long nextTransactionIndex = buffer.getLong();
+            long totalTransactions = buffer.getLong();
+            Hash256 stateHash = new Hash256(read32(buffer));
+            Hash256 accountHash = new Hash256(read32(buffer));
+            return new Checkpoint(ledgerIndex, nextTransactionIndex, totalTransactions,
+                    stateHash, accountHash.isZero() ? null : accountHash);
+        }
+
+        private static byte[] read32(ByteBuffer buffer) {
+            byte[] bytes = new byte[32];
+            buffer.get(bytes);
+            return bytes;
+        }
+
+        private static long crc(byte[] bytes, int length) {
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, length);
+            return crc.getValue();
+        }
+    }
+
+    public AccountStateCheckpointer(File directory) {
+        this.directory = directory;
+        this.backend = LogStructuredBackend.open(new File(directory, NODES_DIRECTORY));
+        this.store = new NodeStore(backend);
+    }
+
+    /**
+     * Writes the builder's state, and where it's up to. Only the nodes
+     * changed since the state was last checkpointed, or resumed, are
+     * written, so it must not be flushed to any other store (see
+     * ShaMapFlusher).
+     */
+    public Checkpoint checkpoint(AccountStateBuilder builder) {
+        ShaMapFlusher.Result flushed = builder.state().flush(backend);
+        Checkpoint checkpoint = new Checkpoint(builder.currentLedgerIndex(),
+                builder.nextTransactionIndex, builder.totalTransactions,
+                flushed.rootHash, builder.targetAccountHash());
+        write(checkpoint);
+        return checkpoint;
+    }
+
+    /**
+     * @return the last checkpoint written, or null if there isn't one
+     */
+    public Checkpoint latest() {
+        File file = new File(directory, CHECKPOINT_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                byte[] bytes = new byte[(int) raf.length()];
+                raf.readFully(bytes);
+                return Checkpoint.fromBytes(bytes);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return a builder at the latest checkpoint, with its state loaded on
+     *         demand, or null if there isn't one
+     * @throws IllegalStateException if `verify` and any node is missing or
+     *                               doesn't hash to its key
+     */
+    public AccountStateBuilder resume(int maxCachedNodes, boolean verify) {
+        Checkpoint checkpoint = latest();
+        if (checkpoint == null) {
+            return null;
+        }
+        if (verify) {
+            verify(checkpoint.stateHash);
+        } else if (!checkpoint.stateHash.isZero()) {
+            // Cheap, and catches a missing root, the rest is trusted
+            checkedNode(checkpoint.stateHash);
+        }
+        AccountState state = AccountState.loadFromNodeStore(store, checkpoint.stateHash, maxCachedNodes);
+        AccountStateBuilder builder = new AccountStateBuilder(state, checkpoint.ledgerIndex);
+        builder.restore(checkpoint.nextTransactionIndex, checkpoint.totalTransactions,
+                        checkpoint.accountHash);
+        return builder;
+    }
+
+    /**
+     * Reads every node of the tree rooted at `root`, checking each hashes to
+     * the key it's stored under.
+     *
+     * @return the number of nodes checked
+     */
+    public long verify(Hash256 root) {
+        long nodes = 0;
+        if (root.isZero()) {
+            return nodes;
+        }
+        ArrayDeque<Hash256> pending = new ArrayDeque<Hash256>();
+        pending.push(root);
+        byte[] innerPrefix = HashPrefix.innerNode.bytes;
+
+        while (!pending.isEmpty()) {
+            byte[] blob = checkedNode(pending.pop());
+            nodes++;
+            if (Arrays.equals(Arrays.copyOf(blob, 4), innerPrefix)) {
+                for (int i = 0; i < 16; i++) {
+                    int offset = 4 + i * 32;
+                    Hash256 child = new Hash256(Arrays.copyOfRange(blob, offset, offset + 32));
+                    if (!child.isZero()) {
+                        pending.push(child);
+                    }
+                }
+            }
+        }
+        return nodes;
+    }
+
+    private byte[] checkedNode(Hash256 key) {
+        byte[] blob = backend.get(key);
+        if (blob == null) {
+            throw new IllegalStateException("Checkpoint is missing node " + key);
+        }
+        HalfSha512 hasher = new HalfSha512();
+        hasher.update(blob);
+        if (!hasher.finish().equals(key)) {
+            throw new IllegalStateException("Checkpoint node " + key + " is corrupt");
+        }
+        return blob;
+    }
+
+    /**
+     * Nodes no longer reachable from the latest checkpoint can be dropped
+     * with backend().compact(roots).
+     */
+    public LogStructuredBackend backend() {
+        return backend;
+    }
+
+    @Override
+    public void close() throws IOException {
+        backend.close();
+    }
+
+    private void write(Checkpoint checkpoint) {
+        File tmp = new File(directory, CHECKPOINT_FILE + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(checkpoint.toBytes());
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            File file = new File(directory, CHECKPOINT_FILE);
+            // Not atomic on windows, where renameTo won't replace a file
+            if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+                throw new IOException("Couldn't rename " + tmp + " to " + file);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.core.coretypes.hash.Hash256;
+import com.weibei.core.types.known.sle.LedgerEntry;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The last N versions of an AccountState, keyed by ledger index. Each one is
+ * a ShaMap.copy() of the state as it was put(), so the versions share every
+ * node that didn't change between them, and stay as they were while the
+ * state they were copied from moves on.
+ */
+public class AccountStateHistory {
+    private final int maxVersions;
+    private final TreeMap<Long, AccountState> versions = new TreeMap<Long, AccountState>();
+
+    public AccountStateHistory(int maxVersions) {
+        if (maxVersions < 1) {
+            throw new IllegalArgumentException("maxVersions must be at least 1");
+        }
+        this.maxVersions = maxVersions;
+    }
+
+    /**
+     * Retain a snapshot of `state` as of `ledgerIndex`, forgetting the oldest
+     * version if there are more than maxVersions.
+     */
+    public void put(long ledgerIndex, AccountState state) {
+        if (!versions.isEmpty() && ledgerIndex <= versions.lastKey()) {
+            throw new IllegalArgumentException("ledger " + ledgerIndex +
+                    " is not after " + versions.lastKey());
+        }
+        versions.put(ledgerIndex, state.copy());
+        while (versions.size() > maxVersions) {
+            versions.pollFirstEntry();
+        }
+    }
+
+    public boolean has(long ledgerIndex) {
+        return versions.containsKey(ledgerIndex);
+    }
+
+    public int size() {
+        return versions.size();
+    }
+
+    public long oldest() {
+        return versions.firstKey();
+    }
+
+    public long newest() {
+        return versions.lastKey();
+    }
+
+    /**
+     * @return a copy of the state as of `ledgerIndex`, which can be modified
+     *         without affecting the history
+     */
+    public AccountState get(long ledgerIndex) {
+        return version(ledgerIndex).copy();
+    }
+
+    public LedgerEntry getLE(Hash256 index, long ledgerIndex) {
+        return version(ledgerIndex).getLE(index);
+    }
+
+    public Hash256 hash(long ledgerIndex) {
+        return version(ledgerIndex).hash();
+    }
+
+    /**
+     * Visits what changed from `fromLedger` to `toLedger`, see ShaMapDiff.
+     * Subtrees the two versions share are skipped without being walked.
+     */
+    public void diff(long fromLedger, long toLedger, ShaMapDiffVisitor visitor) {
+        ShaMapDiff.diff(version(fromLedger), version(toLedger), visitor);
+    }
+
+    public ShaMapDiff diff(long fromLedger, long toLedger) {
+        ShaMapDiff diff = new ShaMapDiff(version(fromLedger), version(toLedger));
+        diff.find();
+        return diff;
+    }
+
+    private AccountState version(long ledgerIndex) {
+        AccountState state = versions.get(ledgerIndex);
+        if (state == null) {
+            throw new IllegalArgumentException("ledger " + ledgerIndex + " is not retained");
+        }
+        return state;
+    }
+
+    /**
+     * How much memory each version uses. Versions are walked oldest first,
+     * and a version only owns the nodes it doesn't share with an older one,
+     * so the owned bytes add up to the total for the history. Only nodes in
+     * memory are counted, and bytes are a rough estimate of the nodes alone.
+     */
+    public ArrayList<VersionFootprint> footprints() {
+        ArrayList<VersionFootprint> footprints = new ArrayList<VersionFootprint>();
+        IdentityHashMap<ShaMapNode, long[]> seen = new IdentityHashMap<ShaMapNode, long[]>();
+        for (Map.Entry<Long, AccountState> entry : versions.entrySet()) {
+            VersionFootprint footprint = new VersionFootprint(entry.getKey());
+            footprint.walk(entry.getValue(), seen);
+            footprints.add(footprint);
+        }
+        return footprints;
+    }
+
+    public JSONArray footprintsJSON() {
+        JSONArray array = new JSONArray();
+        for (VersionFootprint footprint : footprints()) {
+            array.put(footprint.toJSON());
+        }
+        return array;
+    }
+
+    public static class VersionFootprint {
+        // Object header and fields, with 4 byte references, padded to 8
+        // bytes. The items leaves hold aren't counted.
+        static final int INNER_BYTES = 48, LEAF_BYTES = 32;
+        private static final long[] NO_COUNTS = new long[0];
+
+        public final long ledgerIndex;
+        public long inners, leaves;
+        public long ownedInners, ownedLeaves;
+        public long ownedBytes;
+
+        VersionFootprint(long ledgerIndex) {
+            this.ledgerIndex = ledgerIndex;
+        }
+
+        // returns the {inners, leaves} under `inner`, which are only walked
+        // the first time, later versions just add up the counts
+        private long[] walk(ShaMapInner inner, IdentityHashMap<ShaMapNode, long[]> seen) {
+            long[] counts = seen.get(inner);
+            if (counts != null) {
+                inners += counts[0];
+                leaves += counts[1];
+                return counts;
+            }
+            counts = new long[]{1, 0};
+            inners++;
+            ownedInners++;
+            ownedBytes += INNER_BYTES + ((16 + 4 * inner.children.length + 7) & ~7);
+
+            for (int i = 0; i < 16; i++) {
+                ShaMapNode branch = inner.resolvedBranch(i);
+                if (branch == null) {
+                    continue;
+                }
+                if (branch.isInner()) {
+                    long[] below = walk(branch.asInner(), seen);
+                    counts[0] += below[0];
+                    counts[1] += below[1];
+                } else {
+                    counts[1]++;
+                    leaves++;
+                    if (seen.put(branch, NO_COUNTS) == null) {
+                        ownedLeaves++;
+                        ownedBytes += LEAF_BYTES;
+                    }
+                }
+            }
+            seen.put(inner, counts);
+            return counts;
+        }
+
+        public JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("ledger_index", ledgerIndex);
+            json.put("inners", inners);
+            json.put("leaves", leaves);
+            json.put("owned_inners", ownedInners);
+            json.put("owned_leaves", ownedLeaves);
+            json.put("owned_bytes", ownedBytes);
+            return json;
+        }
+    }
+}
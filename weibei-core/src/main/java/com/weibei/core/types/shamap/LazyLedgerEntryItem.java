@@ -0,0 +1,97 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.core.coretypes.STObject;
+import com.weibei.core.coretypes.hash.Hash256;
+import com.weibei.core.coretypes.hash.prefixes.HashPrefix;
+import com.weibei.core.coretypes.hash.prefixes.Prefix;
+import com.weibei.core.serialized.BytesSink;
+import com.weibei.core.types.known.sle.LedgerEntry;
+
+/**
+ * A ledger entry kept as its canonical bytes, which are hashed as is, and
+ * only parsed when it's looked at. Most of a loaded state is only ever
+ * hashed, and the bytes are a fraction of the size of the parsed STObject.
+ *
+ * value(), which is what AccountState hands out, parses the entry, and from
+ * then on it's kept, and hashed, instead of the bytes, so it behaves just
+ * like a LedgerEntryItem. peek() is for reading without keeping anything
+ * parsed, but it's a throwaway copy until value() has been called.
+ */
+public class LazyLedgerEntryItem extends ShaMapItem<LedgerEntry> {
+    private final Hash256 index;
+    // The bytes, until value() swaps in the parsed entry. It's one volatile
+    // field so concurrent readers of a published snapshot, which can call
+    // value() via getLE, see one or the other, see SnapshotPublisher
+    private volatile Object state;
+
+    public LazyLedgerEntryItem(Hash256 index, byte[] bytes) {
+        this.index = index;
+        this.state = bytes;
+    }
+
+    public static LazyLedgerEntryItem fromEntry(LedgerEntry le) {
+        return new LazyLedgerEntryItem(le.index(), le.toBytes());
+    }
+
+    @Override
+    void toBytesSink(BytesSink sink) {
+        Object s = state;
+        if (s instanceof byte[]) {
+            sink.add((byte[]) s);
+        } else {
+            ((LedgerEntry) s).toBytesSink(sink);
+        }
+    }
+
+    @Override
+    public LedgerEntry value() {
+        Object s = state;
+        if (s instanceof byte[]) {
+            synchronized (this) {
+                s = state;
+                if (s instanceof byte[]) {
+                    s = parse((byte[]) s);
+                    state = s;
+                }
+            }
+        }
+        return (LedgerEntry) s;
+    }
+
+    /**
+     * @return the entry if value() has been called, else a new parse of the
+     *         bytes each time, changes to which are never seen again
+     */
+    public LedgerEntry peek() {
+        Object s = state;
+        return s instanceof byte[] ? parse((byte[]) s) : (LedgerEntry) s;
+    }
+
+    private LedgerEntry parse(byte[] bytes) {
+        LedgerEntry le = (LedgerEntry) STObject.translate.fromBytes(bytes);
+        le.index(index);
+        return le;
+    }
+
+    public boolean isParsed() {
+        return state instanceof LedgerEntry;
+    }
+
+    @Override
+    public ShaMapItem<LedgerEntry> copy() {
+        // The bytes are never modified, so can be shared
+        Object s = state;
+        return new LazyLedgerEntryItem(index, s instanceof byte[] ? (byte[]) s :
+                                              ((LedgerEntry) s).toBytes());
+    }
+
+    @Override
+    public Prefix hashPrefix() {
+        return HashPrefix.leafNode;
+    }
+
+    @Override
+    public String toString() {
+        return peek().prettyJSON();
+    }
+}
@@ -0,0 +1,124 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.core.coretypes.STObject;
+import com.weibei.core.types.known.sle.LedgerEntry;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.Reader;
+
+/**
+ * Reads the `accountState` array out of a ledger dump one entry at a time,
+ * so only a single entry is ever parsed into a JSONObject. Everything else
+ * in the dump (eg. `transactions`) is scanned over without being parsed.
+ *
+ * Handles the same `result` and `ledger` wrappers as
+ * AccountState.loadFromLedgerDump always has.
+ */
+public class LedgerDumpReader {
+    private final JSONTokener tokener;
+
+    public LedgerDumpReader(Reader reader) {
+        tokener = new JSONTokener(reader);
+    }
+
+    public void readAccountState(LedgerEntryVisitor visitor) {
+        if (!findAccountState(visitor)) {
+            throw new JSONException("JSONObject[\"accountState\"] not found.");
+        }
+    }
+
+    private boolean findAccountState(LedgerEntryVisitor visitor) {
+        if (tokener.nextClean() != '{') {
+            throw tokener.syntaxError("A JSONObject text must begin with '{'");
+        }
+        while (true) {
+            char c = tokener.nextClean();
+            if (c == 0) {
+                throw tokener.syntaxError("A JSONObject text must end with '}'");
+            } else if (c == '}') {
+                return false;
+            }
+            tokener.back();
+            String key = tokener.nextValue().toString();
+            if (tokener.nextClean() != ':') {
+                throw tokener.syntaxError("Expected a ':' after a key");
+            }
+
+            if (key.equals("accountState")) {
+                readEntries(visitor);
+                // No need to read the rest
+                return true;
+            } else if ((key.equals("result") || key.equals("ledger")) && peek() == '{') {
+                if (findAccountState(visitor)) {
+                    return true;
+                }
+            } else {
+                skipValue();
+            }
+
+            c = tokener.nextClean();
+            if (c == '}') {
+                return false;
+            } else if (c != ',' && c != ';') {
+                throw tokener.syntaxError("Expected a ',' or '}'");
+            }
+        }
+    }
+
+    private void readEntries(LedgerEntryVisitor visitor) {
+        if (tokener.nextClean() != '[') {
+            throw tokener.syntaxError("A JSONArray text must start with '['");
+        }
+        if (peek() == ']') {
+            tokener.next();
+            return;
+        }
+        while (true) {
+            Object value = tokener.nextValue();
+            if (!(value instanceof JSONObject)) {
+                throw tokener.syntaxError("Expected a ledger entry object");
+            }
+            visitor.onEntry((LedgerEntry) STObject.fromJSONObject((JSONObject) value));
+
+            char c = tokener.nextClean();
+            if (c == ']') {
+                return;
+            } else if (c != ',') {
+                throw tokener.syntaxError("Expected a ',' or ']'");
+            }
+        }
+    }
+
+    private void skipValue() {
+        char c = tokener.nextClean();
+        if (c == '"' || c == '\'') {
+            tokener.nextString(c);
+        } else if (c == '{' || c == '[') {
+            int depth = 1;
+            while (depth > 0) {
+                c = tokener.next();
+                if (c == 0) {
+                    throw tokener.syntaxError("Unterminated object or array");
+                } else if (c == '"' || c == '\'') {
+                    tokener.nextString(c);
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+            }
+        } else {
+            // numbers, booleans and nulls are small enough to just parse
+            tokener.back();
+            tokener.nextValue();
+        }
+    }
+
+    private char peek() {
+        char c = tokener.nextClean();
+        tokener.back();
+        return c;
+    }
+}
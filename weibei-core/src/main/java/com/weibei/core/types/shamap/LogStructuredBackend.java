@@ -0,0 +1,888 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.core.coretypes.hash.Hash256;
+import com.weibei.core.coretypes.hash.prefixes.HashPrefix;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A NodeStore.KeyValueBackend that keeps everything in a directory on disk.
+ *
+ * Content is appended to segment files as [key 32][length 4][content]
+ * records, and an open addressing table of key -> (segment, offset, length)
+ * is kept in a memory mapped index file, so a `get` is a probe into the
+ * mapping followed by a single positional read.
+ *
+ * Puts are buffered and appended in batches (see flush()), and the SyncPolicy
+ * decides when segments and index are forced to disk. Everything is keyed by
+ * the hash of its content, so any record for a key is as good as another,
+ * and the index can always be rebuilt by replaying the segments. That's what
+ * happens on open for anything appended after the last flush.
+ *
+ * Nodes that can't be reached from a set of roots can be dropped with
+ * compact(roots), which rewrites the sealed segments, optionally on a
+ * background thread.
+ */
+public class LogStructuredBackend implements NodeStore.KeyValueBackend, Flushable, Closeable {
+    public static enum SyncPolicy {
+        // Leave it to the OS, a crash may lose or corrupt recent puts
+        NONE,
+        // Force segments, then the index, on every flush
+        BATCH,
+        // Flush, and force, on every put
+        EVERY_WRITE
+    }
+
+    public static final int DEFAULT_BATCH_BYTES = 4 * 1024 * 1024;
+    public static final long DEFAULT_SEGMENT_BYTES = 256L * 1024 * 1024;
+
+    static final String INDEX_FILE = "index";
+    static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final long MAGIC = 0x57424E4F44455331L; // WBNODES1
+    private static final int HEADER_SIZE = 64;
+    private static final int H_CAPACITY = 8;
+    private static final int H_COUNT = 12;
+    private static final int H_WATERMARK_SEGMENT = 16;
+    private static final int H_WATERMARK_OFFSET = 20;
+    private static final int H_EPOCH = 28;
+
+    // [key prefix 8][location 8][length 4][mark 4]
+    private static final int SLOT_SIZE = 24;
+    private static final int CHUNK_BITS = 20;
+    private static final int SLOTS_PER_CHUNK = 1 << CHUNK_BITS;
+    private static final int MIN_CAPACITY = 1 << 16;
+
+    private static final int RECORD_HEADER = 36;
+    private static final int INNER_NODE_SIZE = 4 + 16 * 32;
+
+    private final File directory;
+    private final SyncPolicy syncPolicy;
+    private final int batchBytes;
+    private final long segmentBytes;
+
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    private Segment active;
+    private int nextSegmentId = 1;
+
+    private final LinkedHashMap<Hash256, byte[]> pending = new LinkedHashMap<Hash256, byte[]>();
+    private int pendingBytes = 0;
+
+    private RandomAccessFile indexFile;
+    private MappedByteBuffer header;
+    private MappedByteBuffer[] chunks;
+    private int capacity;
+    private int count;
+
+    // Non zero while a compaction is marking
+    private int markEpoch = 0;
+    private boolean compacting = false;
+    private ExecutorService compactor;
+    // Set by close(), a running compaction stops at the next record
+    private volatile boolean closing = false;
+
+    private static class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        long size;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            this.size = channel.size();
+        }
+    }
+
+    public static class CompactionResult {
+        public int segmentsCompacted;
+        public long recordsKept;
+        public long recordsDropped;
+        public long bytesBefore;
+        public long bytesAfter;
+    }
+
+    public static LogStructuredBackend open(File directory) {
+        return new LogStructuredBackend(directory, SyncPolicy.BATCH,
+                DEFAULT_BATCH_BYTES, DEFAULT_SEGMENT_BYTES);
+    }
+
+    public LogStructuredBackend(File directory, SyncPolicy syncPolicy,
+                                int batchBytes, long segmentBytes) {
+        if (segmentBytes >= (1L << 40)) {
+            throw new IllegalArgumentException("segmentBytes must be < 2^40");
+        }
+        this.directory = directory;
+        this.syncPolicy = syncPolicy;
+        this.batchBytes = batchBytes;
+        this.segmentBytes = segmentBytes;
+
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Couldn't create " + directory);
+            }
+            openSegments();
+            openIndex();
+            replay();
+            openActiveSegment();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public synchronized void put(Hash256 key, byte[] content) {
+        if (pending.containsKey(key)) {
+            return;
+        }
+        int slot = find(key);
+        if (slot >= 0) {
+            // A writer referencing it is as good as reachable
+            if (markEpoch != 0) {
+                setMark(slot, markEpoch);
+            }
+            return;
+        }
+        pending.put(key, content);
+        pendingBytes += RECORD_HEADER + content.length;
+
+        if (syncPolicy == SyncPolicy.EVERY_WRITE || pendingBytes >= batchBytes) {
+            flush();
+        }
+    }
+
+    @Override
+    public synchronized byte[] get(Hash256 key) {
+        byte[] content = pending.get(key);
+        if (content != null) {
+            return content;
+        }
+        try {
+            long prefix = keyPrefix(key);
+            int mask = capacity - 1;
+            for (int slot = home(prefix); ; slot = (slot + 1) & mask) {
+                long location = slotLocation(slot);
+                if (location == 0) {
+                    return null;
+                }
+                if (slotKey(slot) == prefix) {
+                    ByteBuffer record = readRecord(location, slotLength(slot));
+                    if (keyMatches(record, key)) {
+                        record.position(RECORD_HEADER);
+                        byte[] bytes = new byte[record.remaining()];
+                        record.get(bytes);
+                        return bytes;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public synchronized boolean contains(Hash256 key) {
+        return pending.containsKey(key) || find(key) >= 0;
+    }
+
+    public synchronized int size() {
+        return count + pending.size();
+    }
+
+    /**
+     * Appends all buffered puts to the active segment in a single write,
+     * then indexes them.
+     */
+    @Override
+    public synchronized void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        try {
+            int n = pendingBytes;
+            if (active.size > 0 && active.size + n > segmentBytes) {
+                sealActiveSegment();
+            }
+            ByteBuffer batch = ByteBuffer.allocate(n);
+            for (Map.Entry<Hash256, byte[]> entry : pending.entrySet()) {
+                batch.put(entry.getKey().bytes());
+                batch.putInt(entry.getValue().length);
+                batch.put(entry.getValue());
+            }
+            batch.flip();
+            long base = active.size;
+            writeFully(active.channel, batch, base);
+            active.size += n;
+            if (syncPolicy != SyncPolicy.NONE) {
+                active.channel.force(false);
+            }
+
+            long offset = base;
+            for (Map.Entry<Hash256, byte[]> entry : pending.entrySet()) {
+                int length = entry.getValue().length;
+                insert(entry.getKey(), location(active.id, offset), length);
+                offset += RECORD_HEADER + length;
+            }
+            pending.clear();
+            pendingBytes = 0;
+
+            setWatermark(active.id, active.size);
+            if (syncPolicy != SyncPolicy.NONE) {
+                forceIndex();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Stops any background compaction, waiting for it to get to a record
+     * boundary, then flushes and closes everything.
+     */
+    @Override
+    public void close() throws IOException {
+        ExecutorService running;
+        synchronized (this) {
+            if (closing) {
+                return;
+            }
+            closing = true;
+            running = compactor;
+        }
+        if (running != null) {
+            // Not shutdownNow(), interrupting a thread in FileChannel I/O
+            // closes the channel, which is shared with everything else
+            running.shutdown();
+            awaitTermination(running);
+        }
+        synchronized (this) {
+            flush();
+            forceIndex();
+            for (Segment segment : segments.values()) {
+                segment.channel.force(false);
+                segment.channel.close();
+            }
+            segments.clear();
+            indexFile.close();
+        }
+    }
+
+    private static void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public synchronized Future<CompactionResult> compactInBackground(final Collection<Hash256> roots) {
+        checkOpen();
+        if (compactor == null) {
+            compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "nodestore-compaction");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return compactor.submit(new Callable<CompactionResult>() {
+            @Override
+            public CompactionResult call() throws Exception {
+                return compact(roots);
+            }
+        });
+    }
+
+    /**
+     * Drops every record in the currently sealed segments that isn't
+     * reachable from `roots`, by following inner nodes stored in their
+     * hashing form (innerNode prefix + 16 child hashes).
+     *
+     * `roots` must include every state still in use, including any that a
+     * writer is currently deriving new nodes from, as unchanged children are
+     * referenced without being put again.
+     *
+     * @throws CancellationException if the backend is closed part way
+     *         through, which leaves it consistent, just not fully compacted
+     */
+    public CompactionResult compact(Collection<Hash256> roots) {
+        List<Segment> sealed;
+        int epoch;
+
+        synchronized (this) {
+            checkOpen();
+            if (compacting) {
+                throw new IllegalStateException("Already compacting");
+            }
+            flush();
+            try {
+                if (active.size > 0) {
+                    sealActiveSegment();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            sealed = new ArrayList<Segment>(segments.headMap(active.id).values());
+            epoch = header.getInt(H_EPOCH) + 1;
+            if (epoch == 0) epoch = 1;
+            header.putInt(H_EPOCH, epoch);
+            markEpoch = epoch;
+            compacting = true;
+        }
+
+        try {
+            for (Hash256 root : roots) {
+                markReachable(root, epoch);
+            }
+            // A partial mark can't be swept
+            if (closing) {
+                throw new CancellationException("Closed during compaction");
+            }
+            CompactionResult result = new CompactionResult();
+            for (Segment segment : sealed) {
+                if (!sweep(segment, epoch, result)) {
+                    break;
+                }
+            }
+            if (closing) {
+                throw new CancellationException("Closed during compaction");
+            }
+            return result;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            synchronized (this) {
+                markEpoch = 0;
+                compacting = false;
+            }
+        }
+    }
+
+    private void markReachable(Hash256 root, int epoch) throws IOException {
+        ArrayDeque<Hash256> stack = new ArrayDeque<Hash256>();
+        stack.push(root);
+
+        while (!stack.isEmpty() && !closing) {
+            Hash256 key = stack.pop();
+            byte[] content;
+            synchronized (this) {
+                int slot = find(key);
+                if (slot < 0 || slotMark(slot) == epoch) {
+                    // Already visited, or it's only just been put
+                    continue;
+                }
+                setMark(slot, epoch);
+                content = get(key);
+            }
+            if (isInnerNode(content)) {
+                for (int i = 0; i < 16; i++) {
+                    byte[] child = new byte[32];
+                    System.arraycopy(content, 4 + i * 32, child, 0, 32);
+                    Hash256 childKey = new Hash256(child);
+                    if (!childKey.isZero()) {
+                        stack.push(childKey);
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean isInnerNode(byte[] content) {
+        if (content.length != INNER_NODE_SIZE) {
+            return false;
+        }
+        byte[] prefix = HashPrefix.innerNode.bytes;
+        for (int i = 0; i < prefix.length; i++) {
+            if (content[i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return false if it stopped early, as the backend is closing, in which
+     *         case the segment is kept, with its remaining records
+     */
+    private boolean sweep(Segment segment, int epoch, CompactionResult result) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(segment.file), 1 << 16));
+        Segment out = null;
+        ArrayList<long[]> moved = new ArrayList<long[]>();
+        ArrayList<Hash256> movedKeys = new ArrayList<Hash256>();
+        ByteBuffer copied = null;
+        boolean stopped = false;
+
+        try {
+            long offset = 0;
+            byte[] keyBytes = new byte[32];
+            while (offset + RECORD_HEADER <= segment.size) {
+                if (closing) {
+                    // What's been copied is still relocated below, the
+                    // rest stays where it is
+                    stopped = true;
+                    break;
+                }
+                in.readFully(keyBytes);
+                int length = in.readInt();
+                byte[] content = new byte[length];
+                in.readFully(content);
+                Hash256 key = new Hash256(keyBytes.clone());
+                long location = location(segment.id, offset);
+                boolean live;
+
+                synchronized (this) {
+                    int slot = slotFor(key, location);
+                    live = slot >= 0 && slotMark(slot) == epoch;
+                    if (slot >= 0 && !live) {
+                        remove(slot);
+                    }
+                }
+                offset += RECORD_HEADER + length;
+
+                if (!live) {
+                    result.recordsDropped++;
+                    continue;
+                }
+                result.recordsKept++;
+                long buffered = copied == null ? 0 : copied.position();
+                if (out == null || out.size + buffered + RECORD_HEADER + length > segmentBytes) {
+                    if (out != null) {
+                        result.bytesAfter += relocate(out, copied, moved, movedKeys);
+                        copied = null;
+                    }
+                    out = newSegment();
+                }
+                if (copied == null || copied.remaining() < RECORD_HEADER + length) {
+                    if (copied != null) {
+                        result.bytesAfter += relocate(out, copied, moved, movedKeys);
+                    }
+                    copied = ByteBuffer.allocate(Math.max(batchBytes, RECORD_HEADER + length));
+                }
+                long newLocation = location(out.id, out.size + copied.position());
+                copied.put(keyBytes);
+                copied.putInt(length);
+                copied.put(content);
+                moved.add(new long[]{location, newLocation, length});
+                movedKeys.add(key);
+            }
+            if (out != null && copied != null) {
+                result.bytesAfter += relocate(out, copied, moved, movedKeys);
+            }
+        } finally {
+            in.close();
+        }
+        if (stopped) {
+            return false;
+        }
+
+        synchronized (this) {
+            // Make sure nothing in the index points at the segment
+            // before it goes away
+            forceIndex();
+            segments.remove(segment.id);
+            segment.channel.close();
+            if (!segment.file.delete()) {
+                throw new IOException("Couldn't delete " + segment.file);
+            }
+        }
+        result.segmentsCompacted++;
+        result.bytesBefore += segment.size;
+        return true;
+    }
+
+    private int relocate(Segment out, ByteBuffer copied, ArrayList<long[]> moved,
+                          ArrayList<Hash256> movedKeys) throws IOException {
+        copied.flip();
+        int n = copied.remaining();
+        writeFully(out.channel, copied, out.size);
+        out.channel.force(false);
+
+        synchronized (this) {
+            out.size += n;
+            for (int i = 0; i < moved.size(); i++) {
+                long[] move = moved.get(i);
+                int slot = slotFor(movedKeys.get(i), move[0]);
+                if (slot >= 0) {
+                    setSlotLocation(slot, move[1]);
+                }
+            }
+        }
+        moved.clear();
+        movedKeys.clear();
+        copied.clear();
+        return n;
+    }
+
+    private void openSegments() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Couldn't list " + directory);
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(SEGMENT_SUFFIX)) {
+                int id = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(id, new Segment(id, file));
+                nextSegmentId = Math.max(nextSegmentId, id + 1);
+            }
+        }
+    }
+
+    private void openActiveSegment() throws IOException {
+        if (segments.isEmpty() || segments.lastEntry().getValue().size >= segmentBytes) {
+            active = newSegment();
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+    }
+
+    private void sealActiveSegment() throws IOException {
+        active.channel.force(false);
+        active = newSegment();
+    }
+
+    private synchronized Segment newSegment() throws IOException {
+        int id = nextSegmentId++;
+        Segment segment = new Segment(id, new File(directory, String.format("%08d%s", id, SEGMENT_SUFFIX)));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /**
+     * Index anything appended since the watermark, truncating a torn
+     * record at the end of a segment.
+     */
+    private void replay() throws IOException {
+        int fromSegment = header.getInt(H_WATERMARK_SEGMENT);
+        long fromOffset = header.getLong(H_WATERMARK_OFFSET);
+
+        for (Segment segment : segments.tailMap(fromSegment).values()) {
+            long offset = segment.id == fromSegment ? fromOffset : 0;
+            FileInputStream fis = new FileInputStream(segment.file);
+            fis.getChannel().position(offset);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(fis, 1 << 16));
+            try {
+                byte[] keyBytes = new byte[32];
+                while (offset + RECORD_HEADER <= segment.size) {
+                    in.readFully(keyBytes);
+                    int length = in.readInt();
+                    if (length < 0 || offset + RECORD_HEADER + length > segment.size) {
+                        break;
+                    }
+                    in.skipBytes(length);
+                    Hash256 key = new Hash256(keyBytes.clone());
+                    if (find(key) < 0) {
+                        insert(key, location(segment.id, offset), length);
+                    }
+                    offset += RECORD_HEADER + length;
+                }
+            } finally {
+                in.close();
+            }
+            if (offset != segment.size) {
+                segment.channel.truncate(offset);
+                segment.size = offset;
+            }
+        }
+        if (!segments.isEmpty()) {
+            Segment last = segments.lastEntry().getValue();
+            setWatermark(last.id, last.size);
+        }
+        forceIndex();
+    }
+
+    private void openIndex() throws IOException {
+        File file = new File(directory, INDEX_FILE);
+        boolean existed = file.exists() && file.length() >= HEADER_SIZE;
+        indexFile = new RandomAccessFile(file, "rw");
+        header = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+
+        if (existed && header.getLong(0) == MAGIC) {
+            capacity = header.getInt(H_CAPACITY);
+            count = header.getInt(H_COUNT);
+            chunks = mapSlots(indexFile, capacity);
+        } else {
+            // Nothing we can trust, so rebuild it all from the segments
+            capacity = MIN_CAPACITY;
+            count = 0;
+            indexFile.setLength(0);
+            header = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            chunks = mapSlots(indexFile, capacity);
+            header.putLong(0, MAGIC);
+            header.putInt(H_CAPACITY, capacity);
+            header.putInt(H_COUNT, 0);
+            setWatermark(0, 0);
+        }
+    }
+
+    private static MappedByteBuffer[] mapSlots(RandomAccessFile file, int capacity) throws IOException {
+        int n = (capacity + SLOTS_PER_CHUNK - 1) / SLOTS_PER_CHUNK;
+        MappedByteBuffer[] mapped = new MappedByteBuffer[n];
+        long chunkBytes = (long) Math.min(capacity, SLOTS_PER_CHUNK) * SLOT_SIZE;
+        for (int i = 0; i < n; i++) {
+            mapped[i] = file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + i * chunkBytes, chunkBytes);
+        }
+        return mapped;
+    }
+
+    private void checkOpen() {
+        if (closing) {
+            throw new IllegalStateException("Closed");
+        }
+    }
+
+    private void forceIndex() {
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+        header.force();
+    }
+
+    private void setWatermark(int segment, long offset) {
+        header.putInt(H_WATERMARK_SEGMENT, segment);
+        header.putLong(H_WATERMARK_OFFSET, offset);
+    }
+
+    private void grow() throws IOException {
+        File file = new File(directory, INDEX_FILE);
+        File tmp = new File(directory, INDEX_FILE + ".tmp");
+        RandomAccessFile newFile = new RandomAccessFile(tmp, "rw");
+        newFile.setLength(0);
+
+        MappedByteBuffer[] oldChunks = chunks;
+        int oldCapacity = capacity;
+        MappedByteBuffer newHeader = newFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        for (int i = 0; i < HEADER_SIZE; i++) {
+            newHeader.put(i, header.get(i));
+        }
+
+        capacity = oldCapacity * 2;
+        chunks = mapSlots(newFile, capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldCapacity; i++) {
+            ByteBuffer from = oldChunks[i >>> CHUNK_BITS];
+            int fromOffset = (i & (SLOTS_PER_CHUNK - 1)) * SLOT_SIZE;
+            long location = from.getLong(fromOffset + 8);
+            if (location == 0) {
+                continue;
+            }
+            long prefix = from.getLong(fromOffset);
+            int slot = home(prefix);
+            while (slotLocation(slot) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            ByteBuffer to = chunk(slot);
+            int toOffset = slotOffset(slot);
+            for (int j = 0; j < SLOT_SIZE; j++) {
+                to.put(toOffset + j, from.get(fromOffset + j));
+            }
+        }
+        newHeader.putInt(H_CAPACITY, capacity);
+
+        header = newHeader;
+        forceIndex();
+        indexFile.close();
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Couldn't replace " + file);
+        }
+        indexFile = newFile;
+    }
+
+    // Index probing, keys are hashes so the first 8 bytes are as good a
+    // hash code as any.
+
+    private int find(Hash256 key) {
+        long prefix = keyPrefix(key);
+        int mask = capacity - 1;
+        try {
+            for (int slot = home(prefix); ; slot = (slot + 1) & mask) {
+                long location = slotLocation(slot);
+                if (location == 0) {
+                    return -1;
+                }
+                if (slotKey(slot) == prefix && keyMatches(readKey(location), key)) {
+                    return slot;
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the slot pointing exactly at `location`, which saves reading
+     *         the key back from disk
+     */
+    private int slotFor(Hash256 key, long location) {
+        long prefix = keyPrefix(key);
+        int mask = capacity - 1;
+        for (int slot = home(prefix); ; slot = (slot + 1) & mask) {
+            long at = slotLocation(slot);
+            if (at == 0) {
+                return -1;
+            }
+            if (at == location && slotKey(slot) == prefix) {
+                return slot;
+            }
+        }
+    }
+
+    private void insert(Hash256 key, long location, int length) throws IOException {
+        if ((count + 1) * 4L > capacity * 3L) {
+            grow();
+        }
+        long prefix = keyPrefix(key);
+        int mask = capacity - 1;
+        int slot = home(prefix);
+        while (slotLocation(slot) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        ByteBuffer chunk = chunk(slot);
+        int offset = slotOffset(slot);
+        chunk.putLong(offset, prefix);
+        chunk.putLong(offset + 8, location);
+        chunk.putInt(offset + 16, length);
+        chunk.putInt(offset + 20, markEpoch);
+        header.putInt(H_COUNT, ++count);
+    }
+
+    // Backward shift deletion, so no tombstones are needed
+    private void remove(int slot) {
+        int mask = capacity - 1;
+        int hole = slot;
+        int j = slot;
+        while (true) {
+            j = (j + 1) & mask;
+            if (slotLocation(j) == 0) {
+                break;
+            }
+            int home = home(slotKey(j));
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                ByteBuffer from = chunk(j), to = chunk(hole);
+                int fromOffset = slotOffset(j), toOffset = slotOffset(hole);
+                for (int k = 0; k < SLOT_SIZE; k++) {
+                    to.put(toOffset + k, from.get(fromOffset + k));
+                }
+                hole = j;
+            }
+        }
+        ByteBuffer chunk = chunk(hole);
+        int offset = slotOffset(hole);
+        for (int k = 0; k < SLOT_SIZE; k++) {
+            chunk.put(offset + k, (byte) 0);
+        }
+        header.putInt(H_COUNT, --count);
+    }
+
+    private int home(long prefix) {
+        return (int) (prefix ^ (prefix >>> 32)) & (capacity - 1);
+    }
+
+    private static long keyPrefix(Hash256 key) {
+        byte[] b = key.bytes();
+        long prefix = 0;
+        for (int i = 0; i < 8; i++) {
+            prefix = (prefix << 8) | (b[i] & 0xFF);
+        }
+        return prefix;
+    }
+
+    private ByteBuffer chunk(int slot) {
+        return chunks[slot >>> CHUNK_BITS];
+    }
+
+    private static int slotOffset(int slot) {
+        return (slot & (SLOTS_PER_CHUNK - 1)) * SLOT_SIZE;
+    }
+
+    private long slotKey(int slot) {
+        return chunk(slot).getLong(slotOffset(slot));
+    }
+
+    private long slotLocation(int slot) {
+        return chunk(slot).getLong(slotOffset(slot) + 8);
+    }
+
+    private void setSlotLocation(int slot, long location) {
+        chunk(slot).putLong(slotOffset(slot) + 8, location);
+    }
+
+    private int slotLength(int slot) {
+        return chunk(slot).getInt(slotOffset(slot) + 16);
+    }
+
+    private int slotMark(int slot) {
+        return chunk(slot).getInt(slotOffset(slot) + 20);
+    }
+
+    private void setMark(int slot, int epoch) {
+        chunk(slot).putInt(slotOffset(slot) + 20, epoch);
+    }
+
+    // Segment ids start at 1, so a location is never 0, which marks an
+    // empty slot
+    private static long location(int segment, long offset) {
+        return ((long) segment << 40) | offset;
+    }
+
+    private ByteBuffer readRecord(long location, int length) throws IOException {
+        Segment segment = segments.get((int) (location >>> 40));
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + length);
+        readFully(segment.channel, record, location & ((1L << 40) - 1));
+        record.flip();
+        return record;
+    }
+
+    private ByteBuffer readKey(long location) throws IOException {
+        Segment segment = segments.get((int) (location >>> 40));
+        ByteBuffer key = ByteBuffer.allocate(32);
+        readFully(segment.channel, key, location & ((1L << 40) - 1));
+        key.flip();
+        return key;
+    }
+
+    private static boolean keyMatches(ByteBuffer record, Hash256 key) {
+        byte[] b = key.bytes();
+        for (int i = 0; i < 32; i++) {
+            if (record.get(i) != b[i]) return false;
+        }
+        return true;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer to, long position) throws IOException {
+        while (to.hasRemaining()) {
+            int read = channel.read(to, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer from, long position) throws IOException {
+        while (from.hasRemaining()) {
+            position += channel.write(from, position);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.core.coretypes.STObject;
+import com.weibei.core.coretypes.hash.Hash256;
+import com.weibei.core.coretypes.hash.prefixes.HashPrefix;
+import com.weibei.core.serialized.BinaryParser;
+import com.weibei.core.types.known.tx.Transaction;
+import com.weibei.core.types.known.tx.result.TransactionMeta;
+import com.weibei.core.types.known.tx.result.TransactionResult;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Faults ShaMap nodes in from a NodeStore as they are needed, so a map can
+ * be used without holding the whole tree in memory.
+ *
+ * An attached inner only knows the hashes of its children until
+ * getBranch(i) loads and decodes them. Loaded nodes are kept in a bounded
+ * LRU, and evicting one just drops it from its parent again. That's only
+ * done while the node still hashes to what's in the store, so anything
+ * modified since it was loaded stays resident. Hashing never loads
+ * anything, unloaded branches are hashed with their stored hash.
+ *
+ * With a ShaMapNodeCache, nodes already interned are used rather than
+ * loaded, and loaded nodes are interned, so maps loaded from the same store
+ * share their equal subtrees.
+ *
+ * Like the rest of the ShaMap, this isn't thread safe.
+ */
+public class NodeLoader {
+    // Enough to never evict the nodes on the path currently being walked
+    public static final int MIN_CACHED_NODES = 256;
+
+    private final NodeStore store;
+    private final LinkedHashMap<ShaMapNode, Loaded> cache;
+    private final ShaMapNodeCache nodeCache;
+    private long loads = 0;
+
+    private static class Loaded {
+        final ShaMapInner parent;
+        final int slot;
+
+        Loaded(ShaMapInner parent, int slot) {
+            this.parent = parent;
+            this.slot = slot;
+        }
+    }
+
+    public NodeLoader(NodeStore store, int maxCachedNodes) {
+        this(store, maxCachedNodes, null);
+    }
+
+    public NodeLoader(NodeStore store, int maxCachedNodes, ShaMapNodeCache nodeCache) {
+        final int max = Math.max(maxCachedNodes, MIN_CACHED_NODES);
+        this.store = store;
+        this.nodeCache = nodeCache;
+        this.cache = new LinkedHashMap<ShaMapNode, Loaded>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ShaMapNode, Loaded> eldest) {
+                if (size() > max) {
+                    eldest.getValue().parent.unload(eldest.getValue().slot,
+                                                    eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Turns `root` into the inner stored as `hash`, with all of its
+     * branches left to be loaded on demand.
+     */
+    public void attach(ShaMapInner root, Hash256 hash) {
+        if (hash.isZero()) {
+            return;
+        }
+        byte[] blob = fetch(hash);
+        if (!hasPrefix(blob, HashPrefix.innerNode)) {
+            throw new IllegalStateException(hash + " isn't an inner node");
+        }
+        attach(root, blob);
+        root.hash = hash;
+        if (nodeCache != null) {
+            // Interned nodes must be copied before being modified
+            root.doCoW = true;
+        }
+    }
+
+    /**
+     * @return the number of nodes loaded from the store so far
+     */
+    public long loads() {
+        return loads;
+    }
+
+    public int cached() {
+        return cache.size();
+    }
+
+    void touch(ShaMapNode node) {
+        cache.get(node);
+    }
+
+    ShaMapNode load(ShaMapInner parent, int slot, Hash256 hash) {
+        ShaMapNode node = nodeCache == null ? null : nodeCache.get(hash);
+        if (node == null) {
+            node = decode(parent, hash);
+            loads++;
+            if (nodeCache != null) {
+                node = nodeCache.internLoaded(node);
+            }
+        }
+        cache.put(node, new Loaded(parent, slot));
+        return node;
+    }
+
+    private ShaMapNode decode(ShaMapInner parent, Hash256 hash) {
+        byte[] blob = fetch(hash);
+        ShaMapNode node;
+
+        if (hasPrefix(blob, HashPrefix.innerNode)) {
+            ShaMapInner inner = parent.makeInnerChild();
+            attach(inner, blob);
+            node = inner;
+        } else {
+            Hash256 index = new Hash256(Arrays.copyOfRange(blob, blob.length - 32, blob.length));
+            byte[] itemBytes = Arrays.copyOfRange(blob, 4, blob.length - 32);
+            ShaMapLeaf leaf = new ShaMapLeaf(index, decodeItem(prefixOf(blob), itemBytes, index));
+            // Same as if it had been added to this version of the map
+            leaf.version = parent.version;
+            node = leaf;
+        }
+        node.hash = hash;
+        return node;
+    }
+
+    /**
+     * Override this to decode leaves of other types.
+     */
+    protected ShaMapItem<?> decodeItem(HashPrefix prefix, byte[] itemBytes, Hash256 index) {
+        if (prefix == HashPrefix.leafNode) {
+            return new LazyLedgerEntryItem(index, itemBytes);
+        } else if (prefix == HashPrefix.txNode) {
+            BinaryParser parser = new BinaryParser(itemBytes);
+            Transaction txn = (Transaction) STObject.translate.fromParser(parser, parser.readVLLength());
+            TransactionMeta meta = (TransactionMeta) STObject.translate.fromParser(parser, parser.readVLLength());
+            // The ledger index isn't part of the node
+            return new TransactionResultItem(new TransactionResult(0, index, txn, meta));
+        } else {
+            throw new IllegalStateException("Can't decode leaf with prefix " + prefix);
+        }
+    }
+
+    private void attach(ShaMapInner inner, byte[] blob) {
+        Hash256[] hashes = new Hash256[16];
+        int slotBits = 0;
+        for (int i = 0; i < 16; i++) {
+            int offset = 4 + i * 32;
+            Hash256 hash = new Hash256(Arrays.copyOfRange(blob, offset, offset + 32));
+            if (!hash.isZero()) {
+                hashes[i] = hash;
+                slotBits |= 1 << i;
+            }
+        }
+        inner.setStored(new StoredBranches(this, hashes), slotBits);
+    }
+
+    private byte[] fetch(Hash256 hash) {
+        byte[] blob = store.get(hash);
+        if (blob == null) {
+            throw new IllegalStateException("NodeStore is missing " + hash);
+        }
+        return blob;
+    }
+
+    private static HashPrefix prefixOf(byte[] blob) {
+        for (HashPrefix prefix : HashPrefix.values()) {
+            if (hasPrefix(blob, prefix)) {
+                return prefix;
+            }
+        }
+        return null;
+    }
+
+    private static boolean hasPrefix(byte[] blob, HashPrefix prefix) {
+        byte[] bytes = prefix.bytes;
+        return blob.length >= 4 &&
+                blob[0] == bytes[0] && blob[1] == bytes[1] &&
+                blob[2] == bytes[2] && blob[3] == bytes[3];
+    }
+}
@@ -6,6 +6,9 @@ import com.weibei.core.coretypes.hash.Hash256;
 /**
 
  * This is a toy implementation for illustrative purposes.
+ *
+ * See LogStructuredBackend for a KeyValueBackend that actually persists
+ * nodes to disk.
  */
 public class NodeStore {
     /**
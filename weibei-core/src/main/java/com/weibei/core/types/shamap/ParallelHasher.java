@@ -0,0 +1,114 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.core.coretypes.hash.Hash256;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Hashes the dirty parts of a ShaMap on a ForkJoinPool.
+ *
+ * Only inners with no cached hash are visited, and the branches of such an
+ * inner don't depend on each other, so dirty child inners are hashed as
+ * separate tasks. Inners at or below `forkDepth`, or with fewer than
+ * `minDirtyInners` dirty child inners, are hashed on the current thread.
+ *
+ * The hashes themselves are computed by the same ShaMapNode#hash() used
+ * when hashing sequentially, so the root hash is identical.
+ */
+public class ParallelHasher {
+    public static final int DEFAULT_FORK_DEPTH = 3;
+    public static final int DEFAULT_MIN_DIRTY_INNERS = 2;
+
+    private final ForkJoinPool pool;
+    private final int forkDepth;
+    private final int minDirtyInners;
+
+    public ParallelHasher(ForkJoinPool pool) {
+        this(pool, DEFAULT_FORK_DEPTH, DEFAULT_MIN_DIRTY_INNERS);
+    }
+
+    /**
+     * @param forkDepth inners at this depth or deeper are hashed sequentially
+     *                  (at most 16^forkDepth tasks will be created)
+     * @param minDirtyInners an inner needs at least this many dirty child
+     *                       inners to be worth forking
+     */
+    public ParallelHasher(ForkJoinPool pool, int forkDepth, int minDirtyInners) {
+        this.pool = pool;
+        this.forkDepth = forkDepth;
+        this.minDirtyInners = minDirtyInners;
+    }
+
+    public Hash256 hash(ShaMapInner root) {
+        if (root.hash == null && !root.empty()) {
+            ShaMapListener listener = root.listener();
+            if (listener != null) {
+                // The root itself is counted when it's finally hashed
+                for (int i = 0; i < 16; i++) {
+                    ShaMapNode branch = root.resolvedBranch(i);
+                    if (branch != null) {
+                        ShaMapInner.notifyHashing(branch, listener);
+                    }
+                }
+            }
+            pool.invoke(new HashTask(root));
+        }
+        return root.hash();
+    }
+
+    private void hashDirty(ShaMapInner inner) {
+        if (inner.hash != null) {
+            return;
+        }
+        if (inner.depth >= forkDepth) {
+            inner.hash();
+            return;
+        }
+
+        ArrayList<HashTask> tasks = null;
+        for (int i = 0; i < 16; i++) {
+            // Branches still in a NodeStore are clean, so never fault them in
+            ShaMapNode branch = inner.resolvedBranch(i);
+            if (branch == null || branch.hash != null) {
+                continue;
+            }
+            if (branch.isInner()) {
+                if (tasks == null) {
+                    tasks = new ArrayList<HashTask>(16);
+                }
+                tasks.add(new HashTask(branch.asInner()));
+            } else {
+                // A leaf, which won't be cheaper to hash anywhere else
+                branch.hash();
+            }
+        }
+
+        if (tasks != null) {
+            if (tasks.size() >= minDirtyInners) {
+                RecursiveAction.invokeAll(tasks);
+            } else {
+                for (HashTask task : tasks) {
+                    hashDirty(task.inner);
+                }
+            }
+        }
+        // All the children are hashed by now, so this just hashes the
+        // 16 child hashes
+        inner.hash();
+    }
+
+    private class HashTask extends RecursiveAction {
+        final ShaMapInner inner;
+
+        HashTask(ShaMapInner inner) {
+            this.inner = inner;
+        }
+
+        @Override
+        protected void compute() {
+            hashDirty(inner);
+        }
+    }
+}
@@ -2,16 +2,28 @@ package com.weibei.core.types.shamap;
 
 import com.weibei.core.coretypes.hash.Hash256;
 
-import java.util.ArrayDeque;
-import java.util.Iterator;
+import java.util.Arrays;
 
 public class PathToIndex {
+    // Inners can't be any deeper than 63, see ShaMapInner#makeInnerChild
+    private static final int MAX_INNERS = 64;
+
+    private static final ThreadLocal<PathToIndex> perThread = new ThreadLocal<PathToIndex>() {
+        @Override
+        protected PathToIndex initialValue() {
+            return new PathToIndex();
+        }
+    };
+
     public  Hash256 index;
     public ShaMapLeaf leaf;
 
-    private ArrayDeque<ShaMapInner> inners;
-    private ShaMapInner[] dirtied;
+    // From the root down, dirtyOrCopyInners replaces these with any copies
+    private final ShaMapInner[] inners = new ShaMapInner[MAX_INNERS];
+    private int size = 0;
+    private boolean dirtied = false;
     private boolean matched = false;
+    private boolean inUse = false;
 
     public boolean hasLeaf() {
         return leaf != null;
@@ -20,52 +32,58 @@ public class PathToIndex {
         return matched;
     }
     public boolean copyLeafOnUpdate() {
-        return leaf.version != dirtied[0].version;
+        return leaf.version != inners[0].version;
     }
 
     int size() {
-        return inners.size();
+        return size;
     }
 
     public ShaMapInner top() {
-        return dirtied[dirtied.length - 1];
+        return inners[size - 1];
     }
 
     // returns the
     public ShaMapInner dirtyOrCopyInners() {
-        if (maybeCopyOnWrite()) {
-            int ix = 0;
-            // We want to make a uniformly accessed array of the inners
-            dirtied = new ShaMapInner[inners.size()];
-            // from depth 0 to 1, to 2, to 3, don't be fooled by the api
-            Iterator<ShaMapInner> it = inners.descendingIterator();
-
-            // This is actually the root which COULD be the top of the stack
-            // Think about it ;)
-            ShaMapInner top = it.next();
-            dirtied[ix++] = top;
-            top.invalidate();
-
-            while (it.hasNext()) {
-                ShaMapInner next = it.next();
+        dirtied = true;
+        // This is actually the root which COULD be the top of the stack
+        // Think about it ;)
+        ShaMapInner top = inners[0];
+        ShaMapListener listener = top.listener();
+        invalidate(top, listener);
+
+        if (top.doCoW) {
+            for (int i = 1; i < size; i++) {
+                ShaMapInner next = inners[i];
                 boolean doCopies = next.version != top.version;
 
                 if (doCopies) {
                     ShaMapInner copy = next.copy(top.version);
-                    copy.invalidate();
+                    if (listener != null) {
+                        listener.onCopied(next, copy);
+                    }
+                    invalidate(copy, listener);
                     top.setBranch(index, copy);
                     next = copy;
+                    inners[i] = copy;
                 } else {
-                    next.invalidate();
+                    invalidate(next, listener);
                 }
                 top = next;
-                dirtied[ix++] = top;
             }
-            return top;
         } else {
-            copyInnersToDirtiedArray();
-            return inners.peekFirst();
+            for (int i = 1; i < size; i++) {
+                invalidate(inners[i], listener);
+            }
+        }
+        return top();
+    }
+
+    private static void invalidate(ShaMapInner inner, ShaMapListener listener) {
+        if (listener != null && inner.hash != null) {
+            listener.onInvalidated(inner);
         }
+        inner.invalidate();
     }
 
     public boolean hasMatchedLeaf() {
@@ -73,15 +91,19 @@ public class PathToIndex {
     }
 
     public void collapseOnlyLeafChildInners() {
-        assert dirtied != null;
+        assert dirtied;
 
         ShaMapInner next;
         ShaMapLeaf onlyChild = null;
+        ShaMapListener listener = inners[0].listener();
 
-        for (int i = dirtied.length - 1; i >= 0; i--) {
-            next = dirtied[i];
+        for (int i = size - 1; i >= 0; i--) {
+            next = inners[i];
             if (onlyChild != null) {
                 next.setLeaf(onlyChild);
+                if (listener != null) {
+                    listener.onCollapsed(inners[i + 1]);
+                }
             }
             onlyChild = next.onlyChildLeaf();
             if (onlyChild == null) {
@@ -90,32 +112,50 @@ public class PathToIndex {
         }
     }
 
-    private void copyInnersToDirtiedArray() {
-        int ix = 0;
-        dirtied = new ShaMapInner[inners.size()];
-        Iterator<ShaMapInner> descending = inners.descendingIterator();
-        while (descending.hasNext()) {
-            ShaMapInner next = descending.next();
-            dirtied[ix++] = next;
-            next.invalidate();
-        }
+    public PathToIndex(ShaMapInner root, Hash256 index) {
+        makeStack(root, index);
     }
 
-    private boolean maybeCopyOnWrite() {
-        return inners.peekLast().doCoW;
+    private PathToIndex() {
     }
 
-    public PathToIndex(ShaMapInner root, Hash256 index) {
-        this.index = index;
-        makeStack(root, index);
+    /**
+     * The mutators on ShaMapInner use this rather than creating a new path
+     * (and garbage) for every call. It must be release()d afterwards, and
+     * not be held onto.
+     */
+    static PathToIndex reuse(ShaMapInner root, Hash256 index) {
+        PathToIndex path = perThread.get();
+        if (path.inUse) {
+            path = new PathToIndex();
+        }
+        path.inUse = true;
+        path.makeStack(root, index);
+        return path;
+    }
+
+    /**
+     * Forget the path, so the per thread instance doesn't keep any nodes
+     * alive.
+     */
+    void release() {
+        Arrays.fill(inners, 0, size, null);
+        size = 0;
+        index = null;
+        leaf = null;
+        inUse = false;
     }
 
     private void makeStack(ShaMapInner root, Hash256 index) {
-        inners = new ArrayDeque<ShaMapInner>();
+        this.index = index;
+        leaf = null;
+        matched = false;
+        dirtied = false;
+        size = 0;
         ShaMapInner top = root;
 
         while (true) {
-            inners.push(top);
+            inners[size++] = top;
             ShaMapNode existing = top.getBranch(index);
             if (existing == null) {
                 break;
@@ -132,7 +172,7 @@ public class PathToIndex {
 
     public ShaMapLeaf invalidatedPossiblyCopiedLeafForUpdating() {
         assert matched;
-        if (dirtied == null) {
+        if (!dirtied) {
             dirtyOrCopyInners();
         }
         ShaMapLeaf theLeaf = leaf;
@@ -140,6 +180,10 @@ public class PathToIndex {
         if (copyLeafOnUpdate()) {
             theLeaf = leaf.copy();
             top().setLeaf(theLeaf);
+            ShaMapListener listener = inners[0].listener();
+            if (listener != null) {
+                listener.onCopied(leaf, theLeaf);
+            }
         }
         theLeaf.invalidate();
         return theLeaf;
@@ -0,0 +1,293 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.core.binary.STReader;
+import com.weibei.core.coretypes.STObject;
+import com.weibei.core.coretypes.hash.Hash256;
+import com.weibei.core.serialized.BinaryParser;
+import com.weibei.core.types.known.tx.Transaction;
+import com.weibei.core.types.known.tx.result.TransactionMeta;
+import com.weibei.core.types.known.tx.result.TransactionResult;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Replays ledgers into an AccountStateBuilder with the work spread over a
+ * few threads:
+ *
+ *   reading    a "replay-reader" thread pulls unparsed Records off the
+ *              iterator
+ *   parsing    a pool of threads turns them into TransactionResults
+ *   applying   the calling thread feeds them to the builder, strictly in
+ *              order
+ *   hashing    a copy of the state at each close is hashed, and checked,
+ *              while the next ledger is applied
+ *
+ * The stages are joined by bounded queues, so reading never gets more than
+ * `queueSize` records ahead of applying, and at most `maxPendingHashes`
+ * closed ledgers wait to be hashed.
+ */
+public class ReplayPipeline {
+    public static final int DEFAULT_QUEUE_SIZE = 4096;
+    public static final int DEFAULT_MAX_PENDING_HASHES = 2;
+
+    private final AccountStateBuilder builder;
+    private final int parserThreads;
+    private final int queueSize;
+    private final int maxPendingHashes;
+    private ParallelHasher hasher = null;
+
+    /**
+     * A transaction, as read from a stream but not yet parsed, or a ledger
+     * close.
+     */
+    public static class Record {
+        final long ledgerIndex;
+        final byte[] hash, txn, meta;
+        final Hash256 accountHash, parentHash;
+
+        private Record(long ledgerIndex, byte[] hash, byte[] txn, byte[] meta,
+                       Hash256 accountHash, Hash256 parentHash) {
+            this.ledgerIndex = ledgerIndex;
+            this.hash = hash;
+            this.txn = txn;
+            this.meta = meta;
+            this.accountHash = accountHash;
+            this.parentHash = parentHash;
+        }
+
+        public static Record transaction(long ledgerIndex, byte[] hash, byte[] txn, byte[] meta) {
+            return new Record(ledgerIndex, hash, txn, meta, null, null);
+        }
+
+        /**
+         * Reads what STReader#readTransactionResult would, but only finds
+         * where the objects start and end.
+         */
+        public static Record readTransaction(STReader reader, long ledgerIndex) {
+            BinaryParser parser = reader.parser();
+            byte[] hash = parser.read(32);
+            byte[] txn = parser.read(parser.readVLLength());
+            byte[] meta = parser.read(parser.readVLLength());
+            return transaction(ledgerIndex, hash, txn, meta);
+        }
+
+        public static Record ledgerClose(long ledgerIndex, Hash256 accountHash, Hash256 parentHash) {
+            return new Record(ledgerIndex, null, null, null, accountHash, parentHash);
+        }
+
+        public boolean isLedgerClose() {
+            return accountHash != null;
+        }
+
+        TransactionResult parse() {
+            Transaction tx = (Transaction) STObject.translate.fromBytes(txn);
+            TransactionMeta tm = (TransactionMeta) STObject.translate.fromBytes(meta);
+            return new TransactionResult(ledgerIndex, new Hash256(hash), tx, tm);
+        }
+    }
+
+    public static class Stats {
+        public long ledgers;
+        public long transactions;
+        public long elapsedNanos;
+        // Time the applying thread spent waiting on parsing and hashing
+        public long parseWaitNanos;
+        public long hashWaitNanos;
+
+        public double ledgersPerSecond() {
+            return perSecond(ledgers);
+        }
+
+        public double transactionsPerSecond() {
+            return perSecond(transactions);
+        }
+
+        private double perSecond(long n) {
+            return elapsedNanos == 0 ? 0 : n * 1e9 / elapsedNanos;
+        }
+
+        public JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("ledgers", ledgers);
+            json.put("transactions", transactions);
+            json.put("elapsed_ms", elapsedNanos / 1000000);
+            json.put("ledgers_per_second", ledgersPerSecond());
+            json.put("transactions_per_second", transactionsPerSecond());
+            json.put("parse_wait_ms", parseWaitNanos / 1000000);
+            json.put("hash_wait_ms", hashWaitNanos / 1000000);
+            return json;
+        }
+    }
+
+    public ReplayPipeline(AccountStateBuilder builder) {
+        this(builder, Runtime.getRuntime().availableProcessors(),
+             DEFAULT_QUEUE_SIZE, DEFAULT_MAX_PENDING_HASHES);
+    }
+
+    public ReplayPipeline(AccountStateBuilder builder, int parserThreads,
+                          int queueSize, int maxPendingHashes) {
+        this.builder = builder;
+        this.parserThreads = Math.max(1, parserThreads);
+        this.queueSize = Math.max(1, queueSize);
+        this.maxPendingHashes = Math.max(1, maxPendingHashes);
+    }
+
+    /**
+     * @param hasher used to hash the state at each close, or null to hash
+     *               on a single thread
+     */
+    public void setHasher(ParallelHasher hasher) {
+        this.hasher = hasher;
+    }
+
+    /**
+     * Replays everything, returning once the last ledger has been applied
+     * and checked.
+     *
+     * @throws IllegalStateException if a closed ledger's state doesn't
+     *                               hash to its accountHash
+     */
+    public Stats replay(final Iterator<Record> records) {
+        final Stats stats = new Stats();
+        final ExecutorService parsers = Executors.newFixedThreadPool(parserThreads);
+        final ExecutorService hashing = Executors.newSingleThreadExecutor();
+        // Futures are queued in stream order, so are applied in it too
+        final BlockingQueue<Future<Object>> parsed = new ArrayBlockingQueue<Future<Object>>(queueSize);
+        final Future<Object> end = new FutureTask<Object>(new Callable<Object>() {
+            @Override
+            public Object call() {
+                return null;
+            }
+        });
+        long start = System.nanoTime();
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (records.hasNext()) {
+                        final Record record = records.next();
+                        FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+                            @Override
+                            public Object call() {
+                                return record.isLedgerClose() ? record : record.parse();
+                            }
+                        });
+                        if (record.isLedgerClose()) {
+                            task.run();
+                        } else {
+                            parsers.execute(task);
+                        }
+                        parsed.put(task);
+                    }
+                } catch (InterruptedException e) {
+                    // Applying has stopped, so the put below mustn't block
+                    Thread.currentThread().interrupt();
+                } catch (Throwable t) {
+                    putQuietly(parsed, failed(t));
+                } finally {
+                    putQuietly(parsed, end);
+                }
+            }
+        }, "replay-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        ArrayDeque<Future<?>> hashes = new ArrayDeque<Future<?>>();
+        try {
+            while (true) {
+                long waitStart = System.nanoTime();
+                Future<Object> next = parsed.take();
+                if (next == end) {
+                    break;
+                }
+                Object item = next.get();
+                stats.parseWaitNanos += System.nanoTime() - waitStart;
+
+                if (item instanceof TransactionResult) {
+                    builder.onTransaction((TransactionResult) item);
+                    stats.transactions++;
+                } else {
+                    Record close = (Record) item;
+                    builder.onLedgerClose(close.ledgerIndex, close.accountHash, close.parentHash);
+                    if (hashes.size() == maxPendingHashes) {
+                        waitStart = System.nanoTime();
+                        hashes.poll().get();
+                        stats.hashWaitNanos += System.nanoTime() - waitStart;
+                    }
+                    hashes.add(hashing.submit(check(close, builder.state().copy())));
+                    stats.ledgers++;
+                }
+            }
+            while (!hashes.isEmpty()) {
+                long waitStart = System.nanoTime();
+                hashes.poll().get();
+                stats.hashWaitNanos += System.nanoTime() - waitStart;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw cause instanceof RuntimeException ? (RuntimeException) cause :
+                                                      new RuntimeException(cause);
+        } finally {
+            reader.interrupt();
+            parsers.shutdownNow();
+            hashing.shutdownNow();
+        }
+        stats.elapsedNanos = System.nanoTime() - start;
+        return stats;
+    }
+
+    // The applying thread carries on with the state, which copies on write,
+    // so the copy stays as it was at the close while it's hashed
+    private Callable<Object> check(final Record close, final AccountState closed) {
+        return new Callable<Object>() {
+            @Override
+            public Object call() {
+                Hash256 hash = hasher == null ? closed.hash() : hasher.hash(closed);
+                if (!hash.equals(close.accountHash)) {
+                    throw new IllegalStateException(String.format(
+                            "ledger %d state hashed to %s, expected %s",
+                            close.ledgerIndex, hash, close.accountHash));
+                }
+                return null;
+            }
+        };
+    }
+
+    private static Future<Object> failed(final Throwable t) {
+        FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                if (t instanceof Error) {
+                    throw (Error) t;
+                }
+                throw t instanceof Exception ? (Exception) t : new RuntimeException(t);
+            }
+        });
+        task.run();
+        return task;
+    }
+
+    private static void putQuietly(BlockingQueue<Future<Object>> queue, Future<Object> future) {
+        try {
+            queue.put(future);
+        } catch (InterruptedException ignored) {
+        }
+    }
+}
@@ -1,9 +1,14 @@
 package com.weibei.core.types.shamap;
 
+import com.weibei.core.coretypes.hash.Hash256;
+
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class ShaMap extends ShaMapInner {
     private AtomicInteger copies;
+    private ShaMapListener listener;
+    private boolean flushed = false;
+    private int flushedVersion;
 
     public ShaMap() {
         super(0);
@@ -20,11 +25,49 @@ public class ShaMap extends ShaMapInner {
         return new ShaMap(true, depth);
     }
 
+    /**
+     * @param listener told about the work done on this map (but not any
+     *                 copies of it), or null for none
+     */
+    public void setListener(ShaMapListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    protected ShaMapListener listener() {
+        return listener;
+    }
+
+    @Override
+    public Hash256 hash() {
+        if (listener != null && !empty()) {
+            notifyHashing(this, listener);
+        }
+        return super.hash();
+    }
+
     public ShaMap copy() {
         version = copies.incrementAndGet();
         ShaMap copy = (ShaMap) copy(copies.incrementAndGet());
         copy.copies = copies;
+        copy.flushed = flushed;
+        copy.flushedVersion = flushedVersion;
         return copy;
     }
 
+    /**
+     * Writes the nodes that changed since the last flush (or all of them,
+     * the first time) to `backend`, then flushes it if it's Flushable.
+     * See ShaMapFlusher.
+     */
+    public ShaMapFlusher.Result flush(NodeStore.KeyValueBackend backend) {
+        ShaMapFlusher.Result result = new ShaMapFlusher(backend, flushed, flushedVersion).flush(this);
+        flushed = true;
+        flushedVersion = version;
+        // Anything changed from now on has a newer version
+        version = copies.incrementAndGet();
+        doCoW = true;
+        return result;
+    }
+
 }
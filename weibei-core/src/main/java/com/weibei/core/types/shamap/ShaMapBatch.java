@@ -0,0 +1,68 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.core.coretypes.hash.Hash256;
+
+import java.util.TreeMap;
+
+/**
+ * Adds, updates and removes, kept sorted by index, for applying to a ShaMap
+ * in a single ordered descent with ShaMapInner#apply. Each inner under the
+ * changed indexes is then only dirtied (or copied) and collapsed once, rather
+ * than once for every index below it.
+ *
+ * A later change to the same index replaces an earlier one.
+ */
+public class ShaMapBatch {
+    public static enum Action {
+        ADD,
+        UPDATE,
+        REMOVE
+    }
+
+    static class Change {
+        final Hash256 index;
+        final Action action;
+        final ShaMapItem item;
+
+        Change(Hash256 index, Action action, ShaMapItem item) {
+            this.index = index;
+            this.action = action;
+            this.item = item;
+        }
+    }
+
+    private final TreeMap<Hash256, Change> changes = new TreeMap<Hash256, Change>();
+
+    public ShaMapBatch add(Hash256 index, ShaMapItem item) {
+        return put(index, Action.ADD, item);
+    }
+
+    public ShaMapBatch update(Hash256 index, ShaMapItem item) {
+        return put(index, Action.UPDATE, item);
+    }
+
+    public ShaMapBatch remove(Hash256 index) {
+        return put(index, Action.REMOVE, null);
+    }
+
+    public int size() {
+        return changes.size();
+    }
+
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    public void clear() {
+        changes.clear();
+    }
+
+    Change[] sorted() {
+        return changes.values().toArray(new Change[changes.size()]);
+    }
+
+    private ShaMapBatch put(Hash256 index, Action action, ShaMapItem item) {
+        changes.put(index, new Change(index, action, item));
+        return this;
+    }
+}
@@ -0,0 +1,121 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.core.coretypes.hash.Hash256;
+
+/**
+ * Builds a ShaMap bottom up, in one pass, from leaves given in index order.
+ *
+ * The depth of each leaf is known once the next one has been seen (it's one
+ * more than the longest common prefix with either neighbour), so the leaves
+ * are held back by one. Inners are created along the way, and can be hashed
+ * as soon as the leaves move past them, so the tree comes out hashed without
+ * a second walk.
+ *
+ *     ShaMapBulkLoader loader = new ShaMapBulkLoader(new AccountState(), true);
+ *     for (...) loader.addItem(index, item); // ascending indexes
+ *     AccountState state = (AccountState) loader.finish();
+ */
+public class ShaMapBulkLoader {
+    private final ShaMapInner root;
+    private final boolean hashAsBuilt;
+
+    // inners[d] is the inner at depth d on the path to the last leaf
+    private final ShaMapInner[] inners = new ShaMapInner[64];
+    private int top = 0;
+
+    private ShaMapLeaf pending = null;
+    // common nibbles between pending and the leaf before it
+    private int pendingPrefix = 0;
+    private boolean finished = false;
+
+    /**
+     * @param root an empty inner, which will become the root of the map
+     * @param hashAsBuilt whether to hash inners as they are completed
+     */
+    public ShaMapBulkLoader(ShaMapInner root, boolean hashAsBuilt) {
+        if (!root.empty()) {
+            throw new IllegalArgumentException("root must be empty");
+        }
+        this.root = root;
+        this.hashAsBuilt = hashAsBuilt;
+        inners[0] = root;
+    }
+
+    public void addItem(Hash256 index, ShaMapItem item) {
+        addLeaf(new ShaMapLeaf(index, item));
+    }
+
+    /**
+     * @return whether `index` is after everything added so far, ie. can be
+     *         added
+     */
+    public boolean accepts(Hash256 index) {
+        return pending == null || pending.index.compareTo(index) < 0;
+    }
+
+    public void addLeaf(ShaMapLeaf leaf) {
+        if (finished) {
+            throw new IllegalStateException("already finished");
+        }
+        if (!accepts(leaf.index)) {
+            throw new IllegalArgumentException(
+                    "leaves must be in ascending order: " + leaf.index);
+        }
+        if (pending == null) {
+            pending = leaf;
+            return;
+        }
+        int common = commonNibbles(pending.index, leaf.index);
+        place(pending, Math.max(pendingPrefix, common));
+        pending = leaf;
+        pendingPrefix = common;
+    }
+
+    /**
+     * @return the root, with everything added
+     */
+    public ShaMapInner finish() {
+        if (!finished) {
+            finished = true;
+            if (pending != null) {
+                place(pending, pendingPrefix);
+                pending = null;
+            }
+            popTo(0);
+            if (hashAsBuilt) {
+                root.hash();
+            }
+        }
+        return root;
+    }
+
+    private void place(ShaMapLeaf leaf, int depth) {
+        // Everything deeper than what's shared with the previous leaf is done
+        popTo(pendingPrefix);
+        while (top < depth) {
+            ShaMapInner child = inners[top].makeInnerChild();
+            inners[top].setBranch(leaf.index, child);
+            inners[++top] = child;
+        }
+        inners[depth].setLeaf(leaf);
+    }
+
+    private void popTo(int depth) {
+        while (top > depth) {
+            if (hashAsBuilt) {
+                inners[top].hash();
+            }
+            inners[top--] = null;
+        }
+    }
+
+    static int commonNibbles(Hash256 a, Hash256 b) {
+        byte[] ab = a.bytes(), bb = b.bytes();
+        for (int i = 0; i < ab.length; i++) {
+            if (ab[i] != bb[i]) {
+                return (ab[i] & 0xF0) == (bb[i] & 0xF0) ? i * 2 + 1 : i * 2;
+            }
+        }
+        return ab.length * 2;
+    }
+}
@@ -0,0 +1,93 @@
+package com.weibei.core.types.shamap;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Counts everything a ShaMapListener is told about. Not thread safe, so
+ * give each map its own, or only read them from the thread using the map.
+ *
+ *     ShaMapCounters counters = new ShaMapCounters();
+ *     state.setListener(counters);
+ *     ...
+ *     log(counters.toJSON());
+ *     counters.reset();
+ */
+public class ShaMapCounters implements ShaMapListener {
+    public long innersHashed;
+    public long leavesHashed;
+    public long innersCopied;
+    public long leavesCopied;
+    public long invalidations;
+    public long splits;
+    public long collapses;
+    // of the inners hashed
+    public long[] innersHashedByDepth = new long[64];
+
+    @Override
+    public void onHashed(ShaMapNode node) {
+        if (node.isInner()) {
+            innersHashed++;
+            innersHashedByDepth[node.asInner().depth]++;
+        } else {
+            leavesHashed++;
+        }
+    }
+
+    @Override
+    public void onCopied(ShaMapNode original, ShaMapNode copy) {
+        if (copy.isInner()) {
+            innersCopied++;
+        } else {
+            leavesCopied++;
+        }
+    }
+
+    @Override
+    public void onInvalidated(ShaMapInner inner) {
+        invalidations++;
+    }
+
+    @Override
+    public void onSplit(ShaMapInner created) {
+        splits++;
+    }
+
+    @Override
+    public void onCollapsed(ShaMapInner removed) {
+        collapses++;
+    }
+
+    public void reset() {
+        innersHashed = leavesHashed = 0;
+        innersCopied = leavesCopied = 0;
+        invalidations = splits = collapses = 0;
+        innersHashedByDepth = new long[64];
+    }
+
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("inners_hashed", innersHashed);
+        json.put("leaves_hashed", leavesHashed);
+        json.put("inners_copied", innersCopied);
+        json.put("leaves_copied", leavesCopied);
+        json.put("invalidations", invalidations);
+        json.put("splits", splits);
+        json.put("collapses", collapses);
+        json.put("inners_hashed_by_depth", histogram(innersHashedByDepth));
+        return json;
+    }
+
+    // Trailing zeros trimmed
+    static JSONArray histogram(long[] counts) {
+        int n = counts.length;
+        while (n > 0 && counts[n - 1] == 0) {
+            n--;
+        }
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < n; i++) {
+            array.put(counts[i]);
+        }
+        return array;
+    }
+}
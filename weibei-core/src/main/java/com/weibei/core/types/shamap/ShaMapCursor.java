@@ -0,0 +1,230 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.core.coretypes.hash.Hash256;
+
+/**
+ * Walks the leaves of a ShaMap in index order, in either direction, from
+ * wherever it's seeked to. The path to the current leaf is kept in fixed
+ * size arrays, so stepping doesn't allocate anything.
+ *
+ *     ShaMapCursor cursor = map.cursor();
+ *     cursor.setUpperBound(end);
+ *     for (boolean ok = cursor.seek(start); ok; ok = cursor.next()) {
+ *         ShaMapLeaf leaf = cursor.leaf();
+ *     }
+ *
+ * Seeks are clamped to the bounds, eg. seekFirst() is seek(lowerBound), and
+ * seekLast() finds the last leaf before the upper bound. Stepping fails once
+ * it passes the bound in the direction it's going.
+ *
+ * Like QualityIterator, this assumes the map isn't modified while it's in
+ * use (a copy() can be used to get one that won't be).
+ */
+public class ShaMapCursor {
+    private final ShaMapInner root;
+    // inners[d] is the inner at depth d, and slots[d] the branch of it taken
+    private final ShaMapInner[] inners = new ShaMapInner[64];
+    private final int[] slots = new int[64];
+    private int depth = -1;
+    private ShaMapLeaf leaf;
+
+    private Hash256 lowerBound;
+    private Hash256 upperBound;
+
+    public ShaMapCursor(ShaMapInner root) {
+        this.root = root;
+    }
+
+    /**
+     * @param lowerBound leaves before this (inclusive) bound are out of
+     *                   range, or null for no bound
+     */
+    public ShaMapCursor setLowerBound(Hash256 lowerBound) {
+        this.lowerBound = lowerBound;
+        return this;
+    }
+
+    /**
+     * @param upperBound leaves from this (exclusive) bound on are out of
+     *                   range, or null for no bound
+     */
+    public ShaMapCursor setUpperBound(Hash256 upperBound) {
+        this.upperBound = upperBound;
+        return this;
+    }
+
+    public boolean valid() {
+        return leaf != null;
+    }
+
+    public ShaMapLeaf leaf() {
+        return leaf;
+    }
+
+    public Hash256 index() {
+        return leaf == null ? null : leaf.index;
+    }
+
+    public boolean seekFirst() {
+        if (lowerBound != null) {
+            return seek(lowerBound);
+        }
+        return start() && forwardFrom(0, -1);
+    }
+
+    public boolean seekLast() {
+        if (upperBound != null) {
+            return seekBefore(upperBound, false);
+        }
+        return start() && backwardFrom(0, 16);
+    }
+
+    /**
+     * Moves to the first leaf at or after `index`, or the lower bound if
+     * that's later
+     * @return whether there is one, within the bounds
+     */
+    public boolean seek(Hash256 index) {
+        if (!start()) {
+            return false;
+        }
+        if (lowerBound != null && index.compareTo(lowerBound) < 0) {
+            index = lowerBound;
+        }
+        int d = 0;
+        while (true) {
+            int slot = index.nibblet(d);
+            ShaMapNode branch = inners[d].getBranch(slot);
+            if (branch == null) {
+                return forwardFrom(d, slot);
+            } else if (branch.isLeaf()) {
+                slots[d] = slot;
+                depth = d;
+                if (branch.asLeaf().index.compareTo(index) >= 0) {
+                    return found(branch.asLeaf(), true);
+                }
+                return forwardFrom(d, slot);
+            } else {
+                slots[d] = slot;
+                inners[++d] = branch.asInner();
+            }
+        }
+    }
+
+    /**
+     * Moves to the last leaf at or before `index`, or before the upper
+     * bound if that's earlier
+     * @return whether there is one, within the bounds
+     */
+    public boolean seekFloor(Hash256 index) {
+        if (upperBound != null && index.compareTo(upperBound) >= 0) {
+            return seekBefore(upperBound, false);
+        }
+        return seekBefore(index, true);
+    }
+
+    private boolean seekBefore(Hash256 index, boolean inclusive) {
+        if (!start()) {
+            return false;
+        }
+        int d = 0;
+        while (true) {
+            int slot = index.nibblet(d);
+            ShaMapNode branch = inners[d].getBranch(slot);
+            if (branch == null) {
+                return backwardFrom(d, slot);
+            } else if (branch.isLeaf()) {
+                slots[d] = slot;
+                depth = d;
+                int cmp = branch.asLeaf().index.compareTo(index);
+                if (cmp < 0 || inclusive && cmp == 0) {
+                    return found(branch.asLeaf(), false);
+                }
+                return backwardFrom(d, slot);
+            } else {
+                slots[d] = slot;
+                inners[++d] = branch.asInner();
+            }
+        }
+    }
+
+    public boolean next() {
+        return leaf != null && forwardFrom(depth, slots[depth]);
+    }
+
+    public boolean previous() {
+        return leaf != null && backwardFrom(depth, slots[depth]);
+    }
+
+    private boolean start() {
+        leaf = null;
+        depth = -1;
+        if (root.empty()) {
+            return false;
+        }
+        inners[0] = root;
+        return true;
+    }
+
+    // Find the first leaf after branch `slot` of inners[d]
+    private boolean forwardFrom(int d, int slot) {
+        while (d >= 0) {
+            int after = slot < 0 ? 0xFFFF : 0xFFFF & ~((2 << slot) - 1);
+            int bits = inners[d].slotBits & after;
+            if (bits != 0) {
+                slots[d] = Integer.numberOfTrailingZeros(bits);
+                return descend(d, true);
+            }
+            if (--d >= 0) {
+                slot = slots[d];
+            }
+        }
+        return notFound();
+    }
+
+    // Find the last leaf before branch `slot` of inners[d]
+    private boolean backwardFrom(int d, int slot) {
+        while (d >= 0) {
+            int bits = inners[d].slotBits & ((1 << slot) - 1);
+            if (bits != 0) {
+                slots[d] = 31 - Integer.numberOfLeadingZeros(bits);
+                return descend(d, false);
+            }
+            if (--d >= 0) {
+                slot = slots[d];
+            }
+        }
+        return notFound();
+    }
+
+    // From branch slots[d] of inners[d], to its first (or last) leaf
+    private boolean descend(int d, boolean first) {
+        while (true) {
+            ShaMapNode branch = inners[d].getBranch(slots[d]);
+            if (branch.isLeaf()) {
+                depth = d;
+                return found(branch.asLeaf(), first);
+            }
+            ShaMapInner inner = branch.asInner();
+            inners[++d] = inner;
+            slots[d] = first ? Integer.numberOfTrailingZeros(inner.slotBits) :
+                               31 - Integer.numberOfLeadingZeros(inner.slotBits);
+        }
+    }
+
+    // Seeks start within the bounds, so only the bound in the direction
+    // of travel can be passed
+    private boolean found(ShaMapLeaf leaf, boolean forwards) {
+        if (forwards ? upperBound != null && leaf.index.compareTo(upperBound) >= 0 :
+                       lowerBound != null && leaf.index.compareTo(lowerBound) < 0) {
+            return notFound();
+        }
+        this.leaf = leaf;
+        return true;
+    }
+
+    private boolean notFound() {
+        leaf = null;
+        return false;
+    }
+}
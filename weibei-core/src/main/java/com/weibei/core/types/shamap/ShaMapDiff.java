@@ -2,7 +2,12 @@ package com.weibei.core.types.shamap;
 
 import com.weibei.core.coretypes.hash.Hash256;
 
+import java.util.ArrayList;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class ShaMapDiff {
     public ShaMap one, two;
@@ -18,9 +23,22 @@ public class ShaMapDiff {
 
     // Find what's added, modified and deleted in `two`
     public void find() {
-        one.hash();
-        two.hash();
-        compare(one, two);
+        diff(one, two, new ShaMapDiffVisitor() {
+            @Override
+            public void onAdded(ShaMapLeaf leaf) {
+                added.add(leaf.index);
+            }
+
+            @Override
+            public void onModified(ShaMapLeaf before, ShaMapLeaf after) {
+                modified.add(after.index);
+            }
+
+            @Override
+            public void onDeleted(ShaMapLeaf leaf) {
+                deleted.add(leaf.index);
+            }
+        });
     }
 
     public ShaMapDiff inverted() {
@@ -34,93 +52,286 @@ public class ShaMapDiff {
     }
 
     public void apply(ShaMap sa) {
+        ShaMapBatch batch = new ShaMapBatch();
         for (Hash256 mod : modified) {
-            boolean modded = sa.updateItem(mod, two.getItem(mod).copy());
-            if (!modded) throw new AssertionError();
+            batch.update(mod, two.getItem(mod).copy());
         }
-
         for (Hash256 add : added) {
-            boolean added = sa.addItem(add, two.getItem(add).copy());
-            if (!added) throw new AssertionError();
+            batch.add(add, two.getItem(add).copy());
         }
         for (Hash256 delete : deleted) {
-            boolean removed = sa.removeLeaf(delete);
-            if (!removed) throw new AssertionError();
+            batch.remove(delete);
         }
+        int applied = sa.apply(batch);
+        if (applied != batch.size()) throw new AssertionError();
     }
-    private void compare(ShaMapInner a, ShaMapInner b) {
-        for (int i = 0; i < 16; i++) {
-            ShaMapNode aChild = a.getBranch(i);
-            ShaMapNode bChild = b.getBranch(i);
-
-            if (aChild == null && bChild != null) {
-                trackAdded(bChild);
-                // added in B
-            } else if (aChild != null && bChild == null) {
-                trackRemoved(aChild);
-                // removed from B
-            } else if (aChild != null && !aChild.hash().equals(bChild.hash())) {
-                boolean aleaf  = aChild.isLeaf(),
-                        bLeaf  = bChild.isLeaf();
-
-                if (aleaf && bLeaf) {
-                    ShaMapLeaf la = (ShaMapLeaf) aChild;
-                    ShaMapLeaf lb = (ShaMapLeaf) bChild;
-                    if (la.index.equals(lb.index)) {
-                        modified.add(la.index);
-                    } else {
-                        deleted.add(la.index);
-                        added.add(lb.index);
-                    }
-                } else if (aleaf /*&& bInner*/) {
-                    ShaMapLeaf la = (ShaMapLeaf) aChild;
-                    ShaMapInner ib = (ShaMapInner) bChild;
-                    trackAdded(ib);
-
-                    if (ib.hasLeaf(la.index)) {
-                        // because trackAdded would have added it
-                        added.remove(la.index);
-                        ShaMapLeaf leaf = ib.getLeaf(la.index);
-                        if (!leaf.hash().equals(la.hash())) {
-                            modified.add(la.index);
-                        }
+
+    /**
+     * As above, then interns what changed, so `sa` shares any subtrees
+     * equal to ones in `nodeCache` (like those of `two`, if it's interned).
+     */
+    public void apply(ShaMap sa, ShaMapNodeCache nodeCache) {
+        apply(sa);
+        nodeCache.internTree(sa);
+    }
+    /**
+     * Streams what's added, modified and deleted in `two` to the visitor,
+     * in index order, without collecting anything.
+     */
+    public static void diff(ShaMapInner one, ShaMapInner two, ShaMapDiffVisitor visitor) {
+        compareInners(one, two, visitor);
+    }
+
+    /**
+     * Same as diff(one, two, visitor), but with each of the top level
+     * branches compared as a separate task on `executor`. The visitor is
+     * still only called on this thread, in index order, as the results of
+     * each branch are passed back in bounded queues, which are drained in
+     * branch order.
+     *
+     * The executor must run tasks in the order they are submitted, as a
+     * ThreadPoolExecutor does. The maps mustn't be loaded from a NodeStore
+     * (see NodeLoader), which isn't thread safe.
+     */
+    public static void diff(ShaMapInner one, ShaMapInner two, ShaMapDiffVisitor visitor,
+                            ExecutorService executor) {
+        ArrayList<BranchTask> tasks = new ArrayList<BranchTask>(16);
+        try {
+            for (int i = 0; i < 16; i++) {
+                if (one.hasNone(i) && two.hasNone(i)) {
+                    continue;
+                }
+                BranchTask task = new BranchTask(one, two, i);
+                tasks.add(task);
+                executor.execute(task);
+            }
+            for (BranchTask task : tasks) {
+                task.drainTo(visitor);
+            }
+        } finally {
+            // Unblock anything left behind, eg. if the visitor threw
+            for (BranchTask task : tasks) {
+                task.cancelled = true;
+                task.results.clear();
+            }
+        }
+    }
+
+    private static final int CHUNK_SIZE = 256;
+    private static final int MAX_QUEUED_CHUNKS = 16;
+
+    // A visitor that queues up diffs in chunks for another thread
+    private static class BranchTask implements Runnable, ShaMapDiffVisitor {
+        static final int ADDED = 0, MODIFIED = 1, DELETED = 2;
+        static final Object[] END = new Object[0];
+
+        final ShaMapInner one, two;
+        final int branch;
+        final BlockingQueue<Object[]> results = new ArrayBlockingQueue<Object[]>(MAX_QUEUED_CHUNKS);
+        volatile boolean cancelled = false;
+        volatile Throwable error;
+
+        // Triples of type, before, after
+        Object[] chunk = new Object[CHUNK_SIZE * 3];
+        int size = 0;
+
+        BranchTask(ShaMapInner one, ShaMapInner two, int branch) {
+            this.one = one;
+            this.two = two;
+            this.branch = branch;
+        }
+
+        @Override
+        public void run() {
+            try {
+                compareBranches(one, two, branch, this);
+                flush();
+            } catch (Throwable e) {
+                error = e;
+            } finally {
+                put(END);
+            }
+        }
+
+        void drainTo(ShaMapDiffVisitor visitor) {
+            while (true) {
+                Object[] diffs;
+                try {
+                    diffs = results.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+                if (diffs == END) {
+                    break;
+                }
+                for (int i = 0; i < diffs.length && diffs[i] != null; i += 3) {
+                    int type = (Integer) diffs[i];
+                    if (type == ADDED) {
+                        visitor.onAdded((ShaMapLeaf) diffs[i + 2]);
+                    } else if (type == MODIFIED) {
+                        visitor.onModified((ShaMapLeaf) diffs[i + 1], (ShaMapLeaf) diffs[i + 2]);
                     } else {
-                        deleted.add(la.index);
+                        visitor.onDeleted((ShaMapLeaf) diffs[i + 1]);
                     }
-                } else if (bLeaf /*&& aInner*/) {
-                    ShaMapLeaf lb = (ShaMapLeaf) bChild;
-                    ShaMapInner ia = (ShaMapInner) aChild;
-                    trackRemoved(ia);
-
-                    if (ia.hasLeaf(lb.index)) {
-                        // because trackRemoved would have deleted it
-                        deleted.remove(lb.index);
-                        ShaMapLeaf leaf = ia.getLeaf(lb.index);
-                        if (!leaf.hash().equals(lb.hash())) {
-                            modified.add(lb.index);
+                }
+            }
+            if (error != null) {
+                throw new RuntimeException(error);
+            }
+        }
+
+        @Override
+        public void onAdded(ShaMapLeaf added) {
+            queue(ADDED, null, added);
+        }
+
+        @Override
+        public void onModified(ShaMapLeaf before, ShaMapLeaf after) {
+            queue(MODIFIED, before, after);
+        }
+
+        @Override
+        public void onDeleted(ShaMapLeaf deleted) {
+            queue(DELETED, deleted, null);
+        }
+
+        private void queue(int type, ShaMapLeaf before, ShaMapLeaf after) {
+            if (cancelled) {
+                throw new IllegalStateException("diff was abandoned");
+            }
+            chunk[size++] = type;
+            chunk[size++] = before;
+            chunk[size++] = after;
+            if (size == chunk.length) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            if (size > 0) {
+                put(chunk);
+                chunk = new Object[CHUNK_SIZE * 3];
+                size = 0;
+            }
+        }
+
+        private void put(Object[] diffs) {
+            try {
+                while (!cancelled && !results.offer(diffs, 100, TimeUnit.MILLISECONDS)) {
+                    // until there's room, or nobody's listening any more
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static void compareInners(ShaMapInner a, ShaMapInner b, ShaMapDiffVisitor visitor) {
+        for (int i = 0; i < 16; i++) {
+            compareBranches(a, b, i, visitor);
+        }
+    }
+
+    private static void compareBranches(ShaMapInner a, ShaMapInner b, int i, ShaMapDiffVisitor visitor) {
+        boolean aNone = a.hasNone(i), bNone = b.hasNone(i);
+        if (aNone && bNone) {
+            return;
+        }
+        // Compares the stored hashes of anything not yet loaded, rather
+        // than loading it
+        if (!aNone && !bNone && a.branchHash(i).equals(b.branchHash(i))) {
+            return;
+        }
+        ShaMapNode aChild = aNone ? null : a.getBranch(i);
+        ShaMapNode bChild = bNone ? null : b.getBranch(i);
+
+        if (aChild == null) {
+            trackAdded(bChild, visitor);
+        } else if (bChild == null) {
+            trackRemoved(aChild, visitor);
+        } else if (aChild.isInner() && bChild.isInner()) {
+            compareInners(aChild.asInner(), bChild.asInner(), visitor);
+        } else if (aChild.isLeaf() && bChild.isLeaf()) {
+            ShaMapLeaf la = aChild.asLeaf();
+            ShaMapLeaf lb = bChild.asLeaf();
+            int cmp = la.index.compareTo(lb.index);
+            if (cmp == 0) {
+                visitor.onModified(la, lb);
+            } else if (cmp < 0) {
+                visitor.onDeleted(la);
+                visitor.onAdded(lb);
+            } else {
+                visitor.onAdded(lb);
+                visitor.onDeleted(la);
+            }
+        } else if (aChild.isLeaf()) {
+            mergeLeaf(aChild.asLeaf(), bChild.asInner(), false, visitor);
+        } else {
+            mergeLeaf(bChild.asLeaf(), aChild.asInner(), true, visitor);
+        }
+    }
+
+    /**
+     * Walk the leaves of `inner` in order, slotting in `leaf` where it
+     * belongs, so everything is only visited the once.
+     *
+     * @param leafIsAfter whether `leaf` is from the second map
+     */
+    private static void mergeLeaf(final ShaMapLeaf leaf, ShaMapInner inner,
+                                  final boolean leafIsAfter, final ShaMapDiffVisitor visitor) {
+        final boolean[] pending = new boolean[]{true};
+        inner.walkLeaves(new LeafWalker() {
+            @Override
+            public void onLeaf(ShaMapLeaf other) {
+                if (pending[0]) {
+                    int cmp = leaf.index.compareTo(other.index);
+                    if (cmp == 0) {
+                        pending[0] = false;
+                        if (!leaf.hash().equals(other.hash())) {
+                            if (leafIsAfter) {
+                                visitor.onModified(other, leaf);
+                            } else {
+                                visitor.onModified(leaf, other);
+                            }
                         }
-                    } else {
-                        added.add(lb.index);
+                        return;
+                    } else if (cmp < 0) {
+                        pending[0] = false;
+                        onlyIn(leaf, leafIsAfter, visitor);
                     }
-                } else /*if (aInner && bInner)*/ {
-                    compare((ShaMapInner) aChild, (ShaMapInner) bChild);
                 }
+                onlyIn(other, !leafIsAfter, visitor);
             }
+        });
+        if (pending[0]) {
+            onlyIn(leaf, leafIsAfter, visitor);
+        }
+    }
+
+    private static void onlyIn(ShaMapLeaf leaf, boolean after, ShaMapDiffVisitor visitor) {
+        if (after) {
+            visitor.onAdded(leaf);
+        } else {
+            visitor.onDeleted(leaf);
         }
     }
-    private void trackRemoved(ShaMapNode child) {
+
+    private static void trackRemoved(ShaMapNode child, final ShaMapDiffVisitor visitor) {
         child.walkAnyLeaves(new LeafWalker() {
             @Override
             public void onLeaf(ShaMapLeaf leaf) {
-                deleted.add(leaf.index);
+                visitor.onDeleted(leaf);
             }
         });
     }
-    private void trackAdded(ShaMapNode child) {
+
+    private static void trackAdded(ShaMapNode child, final ShaMapDiffVisitor visitor) {
         child.walkAnyLeaves(new LeafWalker() {
             @Override
             public void onLeaf(ShaMapLeaf leaf) {
-                added.add(leaf.index);
+                visitor.onAdded(leaf);
             }
         });
     }
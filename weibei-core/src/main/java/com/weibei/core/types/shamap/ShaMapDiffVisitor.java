@@ -0,0 +1,10 @@
+package com.weibei.core.types.shamap;
+
+/**
+ * Receives the differences found by ShaMapDiff.diff, in index order.
+ */
+public interface ShaMapDiffVisitor {
+    public void onAdded(ShaMapLeaf added);
+    public void onModified(ShaMapLeaf before, ShaMapLeaf after);
+    public void onDeleted(ShaMapLeaf deleted);
+}
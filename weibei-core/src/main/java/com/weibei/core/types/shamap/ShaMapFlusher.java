@@ -0,0 +1,100 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.core.coretypes.hash.Hash256;
+import com.weibei.core.serialized.BytesList;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Writes the nodes of a ShaMap that changed since it was last flushed, see
+ * ShaMap#flush. After a flush the map copies on write, with a new version,
+ * so any node with a version from before then is unchanged, and already in
+ * the store. Nodes faulted in by a NodeLoader, and not changed since, are
+ * skipped too, as are interned nodes the backend already has.
+ *
+ * This assumes every flush of a map (and its copies) goes to the same store.
+ */
+public class ShaMapFlusher {
+    private final NodeStore.KeyValueBackend backend;
+    private final boolean flushedBefore;
+    private final int flushedVersion;
+    private final ArrayList<Hash256> keys = new ArrayList<Hash256>();
+    private final ArrayList<byte[]> contents = new ArrayList<byte[]>();
+    private final Result result = new Result();
+
+    public static class Result {
+        public Hash256 rootHash;
+        public int inners;
+        public int leaves;
+        public long bytes;
+    }
+
+    ShaMapFlusher(NodeStore.KeyValueBackend backend, boolean flushedBefore, int flushedVersion) {
+        this.backend = backend;
+        this.flushedBefore = flushedBefore;
+        this.flushedVersion = flushedVersion;
+    }
+
+    Result flush(ShaMapInner root) {
+        result.rootHash = root.hash();
+        if (!root.empty()) {
+            collect(root);
+        }
+        // Children were collected before their parents, so if this is
+        // interrupted the store never has an inner without its children
+        for (int i = 0; i < keys.size(); i++) {
+            backend.put(keys.get(i), contents.get(i));
+        }
+        if (backend instanceof Flushable) {
+            try {
+                ((Flushable) backend).flush();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return result;
+    }
+
+    private void collect(ShaMapInner inner) {
+        for (int i = 0; i < 16; i++) {
+            // Branches that were never faulted in are already stored
+            ShaMapNode branch = inner.resolvedBranch(i);
+            if (branch == null || isStored(inner, i, branch)) {
+                continue;
+            }
+            if (branch.isInner()) {
+                collect(branch.asInner());
+            } else {
+                add(branch);
+                result.leaves++;
+            }
+        }
+        add(inner);
+        result.inners++;
+    }
+
+    private boolean isStored(ShaMapInner parent, int slot, ShaMapNode branch) {
+        Hash256 hash = branch.hash();
+        if (parent.stored != null && hash.equals(parent.stored.hashes[slot])) {
+            return true;
+        }
+        long version = branch.isInner() ? branch.asInner().version : branch.asLeaf().version;
+        if (version == ShaMapNodeCache.SHARED_VERSION) {
+            // Could have come from any map
+            return backend.get(hash) != null;
+        }
+        return flushedBefore && version <= flushedVersion;
+    }
+
+    private void add(ShaMapNode node) {
+        BytesList bytes = new BytesList();
+        bytes.add(node.hashPrefix().bytes());
+        node.toBytesSink(bytes);
+        byte[] content = bytes.bytes();
+        keys.add(node.hash());
+        contents.add(content);
+        result.bytes += content.length;
+    }
+}
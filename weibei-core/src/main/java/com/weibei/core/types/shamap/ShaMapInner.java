@@ -5,14 +5,23 @@ import com.weibei.core.coretypes.hash.prefixes.HashPrefix;
 import com.weibei.core.coretypes.hash.prefixes.Prefix;
 import com.weibei.core.serialized.BytesSink;
 
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
 
 public class ShaMapInner extends ShaMapNode implements Iterable<ShaMapNode> {
+    private static final ShaMapNode[] NO_CHILDREN = new ShaMapNode[0];
+
     public int depth;
     int slotBits = 0;
     int version = 0;
     boolean doCoW;
-    protected ShaMapNode[] branches = new ShaMapNode[16];
+    // Only the occupied branches, in slot order, so it's indexed by the
+    // number of bits set in slotBits below a given slot. Most inners only
+    // have a few children, so this saves a lot over 16 slots for each.
+    ShaMapNode[] children = NO_CHILDREN;
+    // Only set for inners faulted in from a NodeStore, see NodeLoader
+    StoredBranches stored;
 
     public ShaMapInner(int depth) {
         this(false, depth, 0);
@@ -26,9 +35,10 @@ public class ShaMapInner extends ShaMapNode implements Iterable<ShaMapNode> {
 
     protected ShaMapInner copy(int version) {
         ShaMapInner copy = makeInnerOfSameClass(depth);
-        System.arraycopy(branches, 0, copy.branches, 0, branches.length);
+        copy.children = children.length == 0 ? NO_CHILDREN : children.clone();
         copy.slotBits = slotBits;
         copy.hash = hash;
+        copy.stored = stored == null ? null : stored.copy();
         copy.version = version;
         doCoW = true;
 
@@ -39,6 +49,31 @@ public class ShaMapInner extends ShaMapNode implements Iterable<ShaMapNode> {
         return new ShaMapInner(true, depth, version);
     }
 
+    /**
+     * @return the listener for this map, if this is the root of one with a
+     *         listener, see ShaMap#setListener
+     */
+    protected ShaMapListener listener() {
+        return null;
+    }
+
+    // Tell the listener about every node that hashing will need to hash
+    static void notifyHashing(ShaMapNode node, ShaMapListener listener) {
+        if (node.hash != null) {
+            return;
+        }
+        listener.onHashed(node);
+        if (node.isInner()) {
+            ShaMapInner inner = node.asInner();
+            for (int i = 0; i < 16; i++) {
+                ShaMapNode branch = inner.resolvedBranch(i);
+                if (branch != null) {
+                    notifyHashing(branch, listener);
+                }
+            }
+        }
+    }
+
     protected ShaMapInner makeInnerChild() {
         int childDepth = depth + 1;
         if (childDepth >= 64) throw new AssertionError();
@@ -59,7 +94,8 @@ public class ShaMapInner extends ShaMapNode implements Iterable<ShaMapNode> {
     }
 
     public void walkLeaves(LeafWalker leafWalker) {
-        for (ShaMapNode branch : branches) {
+        for (int i = 0; i < 16; i++) {
+            ShaMapNode branch = getBranch(i);
             if (branch != null) {
                 if (branch.isInner()) {
                     branch.asInner().walkLeaves(leafWalker);
@@ -72,7 +108,8 @@ public class ShaMapInner extends ShaMapNode implements Iterable<ShaMapNode> {
 
     public void walkTree(TreeWalker treeWalker) {
         treeWalker.onInner(this);
-        for (ShaMapNode branch : branches) {
+        for (int i = 0; i < 16; i++) {
+            ShaMapNode branch = getBranch(i);
             if (branch != null) {
                 if (branch.isLeaf()) {
                     ShaMapLeaf ln = branch.asLeaf();
@@ -89,7 +126,8 @@ public class ShaMapInner extends ShaMapNode implements Iterable<ShaMapNode> {
     public void walkHashedTree(HashedTreeWalker walker) {
         walker.onInner(hash(), this);
 
-        for (ShaMapNode branch : branches) {
+        for (int i = 0; i < 16; i++) {
+            ShaMapNode branch = getBranch(i);
             if (branch != null) {
                 if (branch.isLeaf()) {
                     ShaMapLeaf ln = branch.asLeaf();
@@ -109,7 +147,12 @@ public class ShaMapInner extends ShaMapNode implements Iterable<ShaMapNode> {
         ShaMapLeaf leaf = null;
         int leaves = 0;
 
-        for (ShaMapNode branch : branches) {
+        // Saves faulting in any children when there's more than one
+        if (Integer.bitCount(slotBits) != 1) {
+            return null;
+        }
+        for (int i = 0; i < 16; i++) {
+            ShaMapNode branch = getBranch(i);
             if (branch != null) {
                 if (branch.isInner()) {
                     leaf = null;
@@ -126,14 +169,18 @@ public class ShaMapInner extends ShaMapNode implements Iterable<ShaMapNode> {
     }
 
     public boolean removeLeaf(Hash256 index) {
-        PathToIndex path = pathToIndex(index);
-        if (path.hasMatchedLeaf()) {
-            ShaMapInner top = path.dirtyOrCopyInners();
-            top.removeBranch(index);
-            path.collapseOnlyLeafChildInners();
-            return true;
-        } else {
-            return false;
+        PathToIndex path = PathToIndex.reuse(this, index);
+        try {
+            if (path.hasMatchedLeaf()) {
+                ShaMapInner top = path.dirtyOrCopyInners();
+                top.removeBranch(index);
+                path.collapseOnlyLeafChildInners();
+                return true;
+            } else {
+                return false;
+            }
+        } finally {
+            path.release();
         }
     }
 
@@ -154,39 +201,200 @@ public class ShaMapInner extends ShaMapNode implements Iterable<ShaMapNode> {
     }
 
     public boolean hasLeaf(Hash256 index) {
-        return pathToIndex(index).hasMatchedLeaf();
+        return getLeaf(index) != null;
     }
 
     public ShaMapLeaf getLeaf(Hash256 index) {
-        PathToIndex stack = pathToIndex(index);
-        if (stack.hasMatchedLeaf()) {
-            return stack.leaf;
-        } else {
-            return null;
+        // Nothing is modified, so there's no need to remember the path
+        ShaMapInner inner = this;
+        while (true) {
+            ShaMapNode branch = inner.getBranch(index);
+            if (branch == null) {
+                return null;
+            } else if (branch.isLeaf()) {
+                ShaMapLeaf leaf = branch.asLeaf();
+                return leaf.index.equals(index) ? leaf : null;
+            } else {
+                inner = branch.asInner();
+            }
         }
     }
 
     public boolean addLeaf(ShaMapLeaf leaf) {
-        PathToIndex stack = pathToIndex(leaf.index);
-        if (stack.hasMatchedLeaf()) {
-            return false;
-        } else {
-            ShaMapInner top = stack.dirtyOrCopyInners();
-            top.addLeafToTerminalInner(leaf);
-            return true;
+        PathToIndex stack = PathToIndex.reuse(this, leaf.index);
+        try {
+            if (stack.hasMatchedLeaf()) {
+                return false;
+            } else {
+                ShaMapInner top = stack.dirtyOrCopyInners();
+                top.addLeafToTerminalInner(leaf, listener());
+                return true;
+            }
+        } finally {
+            stack.release();
         }
     }
 
     public boolean updateLeaf(ShaMapLeaf leaf) {
-        PathToIndex stack = pathToIndex(leaf.index);
-        if (stack.hasMatchedLeaf()) {
-            ShaMapInner top = stack.dirtyOrCopyInners();
-            // Why not update in place? Because of structural sharing
-            top.setLeaf(leaf);
-            return true;
+        PathToIndex stack = PathToIndex.reuse(this, leaf.index);
+        try {
+            if (stack.hasMatchedLeaf()) {
+                ShaMapInner top = stack.dirtyOrCopyInners();
+                // Why not update in place? Because of structural sharing
+                top.setLeaf(leaf);
+                return true;
+            } else {
+                return false;
+            }
+        } finally {
+            stack.release();
+        }
+    }
+
+    /**
+     * Applies all the changes in one ordered descent, see ShaMapBatch.
+     *
+     * @return the number of changes applied, as like addItem, updateItem and
+     *         removeLeaf, adding an existing index, or updating or removing a
+     *         missing one does nothing. Nor does updating a leaf with the
+     *         item it already has.
+     */
+    public int apply(ShaMapBatch batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        ShaMapBatch.Change[] changes = applicable(batch.sorted());
+        if (changes.length == 0) {
+            return 0;
+        }
+        return applyRange(changes, 0, changes.length, doCoW, listener());
+    }
+
+    // Drops the changes that would do nothing, so that the descent only
+    // dirties, copies or splits inners that actually change
+    private ShaMapBatch.Change[] applicable(ShaMapBatch.Change[] changes) {
+        int n = 0;
+        for (ShaMapBatch.Change change : changes) {
+            ShaMapLeaf leaf = getLeaf(change.index);
+            boolean applies;
+            switch (change.action) {
+                case ADD:
+                    applies = leaf == null;
+                    break;
+                case UPDATE:
+                    applies = leaf != null && leaf.item != change.item;
+                    break;
+                default:
+                    applies = leaf != null;
+                    break;
+            }
+            if (applies) {
+                changes[n++] = change;
+            }
+        }
+        return n == changes.length ? changes : Arrays.copyOf(changes, n);
+    }
+
+    // All of changes[from, to) are under this inner, which is already
+    // dirtied (or copied) for this version, and each of them applies
+    private int applyRange(ShaMapBatch.Change[] changes, int from, int to, boolean cow,
+                           ShaMapListener listener) {
+        if (listener != null && hash != null) {
+            listener.onInvalidated(this);
+        }
+        invalidate();
+        int applied = 0;
+        int i = from;
+        while (i < to) {
+            int slot = selectBranch(changes[i].index);
+            int end = i + 1;
+            while (end < to && selectBranch(changes[end].index) == slot) {
+                end++;
+            }
+            applied += applyToBranch(slot, changes, i, end, cow, listener);
+            i = end;
+        }
+        return applied;
+    }
+
+    private int applyToBranch(int slot, ShaMapBatch.Change[] changes, int from, int to, boolean cow,
+                              ShaMapListener listener) {
+        ShaMapNode branch = getBranch(slot);
+        ShaMapInner inner;
+
+        if (branch == null) {
+            // So these are all adds
+            if (to - from == 1) {
+                ShaMapBatch.Change change = changes[from];
+                setLeaf(new ShaMapLeaf(change.index, change.item));
+                return 1;
+            }
+            inner = makeInnerChild();
+        } else if (branch.isLeaf()) {
+            ShaMapLeaf leaf = branch.asLeaf();
+            if (to - from == 1 && changes[from].index.equals(leaf.index)) {
+                // An update or a remove, as the leaf is already there
+                ShaMapBatch.Change change = changes[from];
+                if (change.action == ShaMapBatch.Action.REMOVE) {
+                    removeBranch(slot);
+                } else {
+                    setLeaf(new ShaMapLeaf(change.index, change.item));
+                }
+                return 1;
+            }
+            // Push the leaf down and let the new inner sort it out
+            inner = makeInnerChild();
+            inner.setLeaf(leaf);
+            if (listener != null) {
+                listener.onSplit(inner);
+            }
+        } else {
+            inner = branch.asInner();
+            if (cow && inner.version != version) {
+                inner = inner.copy(version);
+                if (listener != null) {
+                    listener.onCopied(branch, inner);
+                }
+            }
+        }
+
+        if (inner != branch) {
+            setBranch(slot, inner);
+        }
+        int applied = inner.applyRange(changes, from, to, cow, listener);
+
+        // Everything below is done, so this is the only collapse needed
+        if (inner.empty()) {
+            removeBranch(slot);
+            if (listener != null) {
+                listener.onCollapsed(inner);
+            }
         } else {
-            return false;
+            ShaMapLeaf onlyChild = inner.onlyChildLeaf();
+            if (onlyChild != null) {
+                setLeaf(onlyChild);
+                if (listener != null) {
+                    listener.onCollapsed(inner);
+                }
+            }
         }
+        return applied;
+    }
+
+    public ShaMapCursor cursor() {
+        return new ShaMapCursor(this);
+    }
+
+    /**
+     * @return a proof that each of `indexes` is, or isn't, in this tree,
+     *         see ShaMapProofVerifier
+     */
+    public ShaMapProof proof(Collection<Hash256> indexes) {
+        return ShaMapProof.generate(this, indexes);
+    }
+
+    public ShaMapProof proof(Hash256... indexes) {
+        return proof(Arrays.asList(indexes));
     }
 
     public PathToIndex pathToIndex(Hash256 index) {
@@ -199,6 +407,10 @@ public class ShaMapInner extends ShaMapNode implements Iterable<ShaMapNode> {
      * @param leaf to add to inner
      */
     void addLeafToTerminalInner(ShaMapLeaf leaf) {
+        addLeafToTerminalInner(leaf, null);
+    }
+
+    void addLeafToTerminalInner(ShaMapLeaf leaf, ShaMapListener listener) {
         ShaMapNode branch = getBranch(leaf.index);
         if (branch == null) {
             setLeaf(leaf);
@@ -208,8 +420,11 @@ public class ShaMapInner extends ShaMapNode implements Iterable<ShaMapNode> {
         } else if (branch.isLeaf()) {
             ShaMapInner inner = makeInnerChild();
             setBranch(leaf.index, inner);
-            inner.addLeafToTerminalInner(leaf);
-            inner.addLeafToTerminalInner(branch.asLeaf());
+            if (listener != null) {
+                listener.onSplit(inner);
+            }
+            inner.addLeafToTerminalInner(leaf, listener);
+            inner.addLeafToTerminalInner(branch.asLeaf(), listener);
         }
     }
 
@@ -222,11 +437,67 @@ public class ShaMapInner extends ShaMapNode implements Iterable<ShaMapNode> {
     }
 
     public ShaMapNode getBranch(int i) {
-        return branches[i];
+        ShaMapNode branch = child(i);
+        if (stored != null) {
+            branch = stored.resolve(this, i, branch);
+        }
+        return branch;
     }
 
     public ShaMapNode branch(int i) {
-        return branches[i];
+        return getBranch(i);
+    }
+
+    /**
+     * @return the branch, without faulting it in from a NodeStore
+     */
+    ShaMapNode resolvedBranch(int i) {
+        return child(i);
+    }
+
+    /**
+     * @return the hash of the branch, or the stored hash if it hasn't been
+     *         faulted in, or ZERO_256 for an empty branch
+     */
+    public Hash256 branchHash(int i) {
+        ShaMapNode branch = child(i);
+        if (branch != null) {
+            return branch.hash();
+        } else if (stored != null && stored.hashes[i] != null) {
+            return stored.hashes[i];
+        } else {
+            return Hash256.ZERO_256;
+        }
+    }
+
+    private ShaMapNode child(int slot) {
+        int bit = 1 << slot;
+        if ((slotBits & bit) == 0) {
+            return null;
+        }
+        return children[Integer.bitCount(slotBits & (bit - 1))];
+    }
+
+    private int childIndex(int slot) {
+        return Integer.bitCount(slotBits & ((1 << slot) - 1));
+    }
+
+    // For the NodeLoader, these neither dirty nor change the contents
+    void setStored(StoredBranches stored, int slotBits) {
+        this.stored = stored;
+        this.slotBits = slotBits;
+        children = new ShaMapNode[Integer.bitCount(slotBits)];
+    }
+
+    void setResolved(int i, ShaMapNode node) {
+        children[childIndex(i)] = node;
+    }
+
+    void unload(int i, ShaMapNode node) {
+        if (child(i) == node && node.hash != null &&
+                node.hash.equals(stored.hashes[i])) {
+            children[childIndex(i)] = null;
+        }
     }
 
     protected int selectBranch(Hash256 index) {
@@ -234,21 +505,42 @@ public class ShaMapInner extends ShaMapNode implements Iterable<ShaMapNode> {
     }
 
     public boolean hasLeaf(int i) {
-        return branches[i].isLeaf();
+        return getBranch(i).isLeaf();
     }
     public boolean hasInner(int i) {
-        return branches[i].isInner();
+        return getBranch(i).isInner();
     }
-    public boolean hasNone(int i) {return branches[i] == null;}
+    public boolean hasNone(int i) {return (slotBits & (1 << i)) == 0;}
 
     private void setBranch(int slot, ShaMapNode node) {
-        slotBits = slotBits | (1 << slot);
-        branches[slot] = node;
+        int ix = childIndex(slot);
+        if (hasNone(slot)) {
+            ShaMapNode[] grown = new ShaMapNode[children.length + 1];
+            System.arraycopy(children, 0, grown, 0, ix);
+            System.arraycopy(children, ix, grown, ix + 1, children.length - ix);
+            children = grown;
+            slotBits = slotBits | (1 << slot);
+        }
+        children[ix] = node;
         invalidate();
     }
 
     private void removeBranch(int slot) {
-        branches[slot] = null;
+        if (stored != null) {
+            stored.hashes[slot] = null;
+        }
+        if (hasNone(slot)) {
+            return;
+        }
+        int ix = childIndex(slot);
+        if (children.length == 1) {
+            children = NO_CHILDREN;
+        } else {
+            ShaMapNode[] shrunk = new ShaMapNode[children.length - 1];
+            System.arraycopy(children, 0, shrunk, 0, ix);
+            System.arraycopy(children, ix + 1, shrunk, ix, shrunk.length - ix);
+            children = shrunk;
+        }
         slotBits = slotBits & ~(1 << slot);
     }
     public boolean empty() {
@@ -265,12 +557,8 @@ public class ShaMapInner extends ShaMapNode implements Iterable<ShaMapNode> {
 
     @Override
     public void toBytesSink(BytesSink sink) {
-        for (ShaMapNode branch : branches) {
-            if (branch != null) {
-                branch.hash().toBytesSink(sink);
-            } else {
-                Hash256.ZERO_256.toBytesSink(sink);
-            }
+        for (int i = 0; i < 16; i++) {
+            branchHash(i).toBytesSink(sink);
         }
     }
 
@@ -290,11 +578,15 @@ public class ShaMapInner extends ShaMapNode implements Iterable<ShaMapNode> {
     }
 
     public ShaMapLeaf getLeafForUpdating(Hash256 leaf) {
-        PathToIndex path = pathToIndex(leaf);
-        if (path.hasMatchedLeaf()) {
-            return path.invalidatedPossiblyCopiedLeafForUpdating();
+        PathToIndex path = PathToIndex.reuse(this, leaf);
+        try {
+            if (path.hasMatchedLeaf()) {
+                return path.invalidatedPossiblyCopiedLeafForUpdating();
+            }
+            return null;
+        } finally {
+            path.release();
         }
-        return null;
     }
 
     @Override
@@ -0,0 +1,38 @@
+package com.weibei.core.types.shamap;
+
+/**
+ * Told about the work done on a ShaMap, see ShaMap#setListener. Calls are
+ * made on the thread doing the work, and nothing is done at all while a
+ * map has no listener.
+ *
+ * See ShaMapCounters for one that just counts.
+ */
+public interface ShaMapListener {
+    /**
+     * A node (with no cached hash) is about to be hashed, as part of hashing
+     * the map.
+     */
+    public void onHashed(ShaMapNode node);
+
+    /**
+     * An inner, or leaf, shared with another copy of the map was copied
+     * before being modified.
+     */
+    public void onCopied(ShaMapNode original, ShaMapNode copy);
+
+    /**
+     * An inner's cached hash was thrown away.
+     */
+    public void onInvalidated(ShaMapInner inner);
+
+    /**
+     * A leaf had to be pushed down into this new inner to make room for
+     * another with a common prefix.
+     */
+    public void onSplit(ShaMapInner created);
+
+    /**
+     * An inner left with only one leaf (or none) was replaced by it.
+     */
+    public void onCollapsed(ShaMapInner removed);
+}
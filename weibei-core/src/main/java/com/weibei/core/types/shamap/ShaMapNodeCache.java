@@ -0,0 +1,148 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.core.coretypes.hash.Hash256;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+
+/**
+ * Interns ShaMap nodes by hash, so equal subtrees in different maps (say the
+ * states of consecutive ledgers, or maps loaded separately) are the same
+ * objects, and only held in memory once.
+ *
+ * Interned nodes are shared, so are never modified. They are given
+ * SHARED_VERSION, which no map has, and maps with interned nodes always copy
+ * on write, so changing a map copies the path down from its root, like it
+ * does after ShaMap.copy(). Roots themselves are never interned.
+ *
+ * The cache only holds weak references, nodes are dropped once no map uses
+ * them anymore.
+ */
+public class ShaMapNodeCache {
+    public static final int SHARED_VERSION = Integer.MIN_VALUE;
+
+    private final HashMap<Hash256, NodeRef> nodes = new HashMap<Hash256, NodeRef>();
+    private final ReferenceQueue<ShaMapNode> collected = new ReferenceQueue<ShaMapNode>();
+    private long hits = 0, misses = 0;
+
+    private static class NodeRef extends WeakReference<ShaMapNode> {
+        final Hash256 hash;
+
+        NodeRef(ShaMapNode node, ReferenceQueue<ShaMapNode> queue) {
+            super(node, queue);
+            this.hash = node.hash;
+        }
+    }
+
+    /**
+     * @return the interned node with `hash`, or null if there isn't one
+     */
+    public synchronized ShaMapNode get(Hash256 hash) {
+        NodeRef ref = nodes.get(hash);
+        ShaMapNode node = ref == null ? null : ref.get();
+        if (node != null) {
+            hits++;
+        }
+        return node;
+    }
+
+    /**
+     * Interns every node below the root of `map`, replacing them with any
+     * equal nodes already interned. Subtrees already interned are skipped,
+     * so after a few changes, only the paths to those are walked.
+     */
+    public void internTree(ShaMapInner map) {
+        map.doCoW = true;
+        internBranches(map);
+    }
+
+    /**
+     * @return the interned node equal to `node`, which is `node` itself (now
+     *         shared) if there wasn't one
+     */
+    public ShaMapNode intern(ShaMapNode node) {
+        if (isShared(node)) {
+            return node;
+        }
+        if (node.isInner()) {
+            internBranches(node.asInner());
+        }
+        return register(node);
+    }
+
+    // For nodes just loaded by a NodeLoader, which have no children loaded
+    // yet, but will have SHARED_VERSION if their parent has
+    ShaMapNode internLoaded(ShaMapNode node) {
+        return register(node);
+    }
+
+    private ShaMapNode register(ShaMapNode node) {
+        Hash256 hash = node.hash();
+        synchronized (this) {
+            expunge();
+            NodeRef ref = nodes.get(hash);
+            ShaMapNode existing = ref == null ? null : ref.get();
+            if (existing != null) {
+                hits++;
+                return existing;
+            }
+            misses++;
+            share(node);
+            nodes.put(hash, new NodeRef(node, collected));
+            return node;
+        }
+    }
+
+    private void internBranches(ShaMapInner inner) {
+        for (int i = 0; i < 16; i++) {
+            ShaMapNode branch = inner.resolvedBranch(i);
+            if (branch != null) {
+                ShaMapNode interned = intern(branch);
+                if (interned != branch) {
+                    inner.setResolved(i, interned);
+                }
+            }
+        }
+    }
+
+    static boolean isShared(ShaMapNode node) {
+        return node.isInner() ? node.asInner().version == SHARED_VERSION :
+                                node.asLeaf().version == SHARED_VERSION;
+    }
+
+    private static void share(ShaMapNode node) {
+        if (node.isInner()) {
+            ShaMapInner inner = node.asInner();
+            inner.version = SHARED_VERSION;
+            inner.doCoW = true;
+        } else {
+            node.asLeaf().version = SHARED_VERSION;
+        }
+    }
+
+    private void expunge() {
+        NodeRef ref;
+        while ((ref = (NodeRef) collected.poll()) != null) {
+            if (nodes.get(ref.hash) == ref) {
+                nodes.remove(ref.hash);
+            }
+        }
+    }
+
+    public synchronized int size() {
+        expunge();
+        return nodes.size();
+    }
+
+    /**
+     * @return how many times an equal node was already interned
+     */
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+}
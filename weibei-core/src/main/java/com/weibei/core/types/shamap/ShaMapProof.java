@@ -0,0 +1,110 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.core.coretypes.hash.Hash256;
+import com.weibei.core.serialized.BinarySerializer;
+import com.weibei.core.serialized.BytesList;
+import com.weibei.encodings.common.B16;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A proof that some leaves are (or are not) in a ShaMap, checked against the
+ * root hash with ShaMapProofVerifier.
+ *
+ * It's the tree pruned down to the paths to the requested indexes, so many
+ * leaves share the inners nearer the root. Each inner is written as a 4 byte
+ * header, 2 bits per branch (see EMPTY etc), followed by the branches:
+ *
+ *   HASH  the 32 byte hash of a branch off the paths
+ *   INNER another inner, recursively
+ *   LEAF  the VL encoded item bytes, then the index
+ *
+ * An index is proven absent when its path ends at an EMPTY branch, or a leaf
+ * with a different index.
+ *
+ * Leaves don't carry their hash prefix, the verifier supplies it, so they
+ * must all share the one the tree's leaves are hashed with.
+ */
+public class ShaMapProof {
+    static final int EMPTY = 0, HASH = 1, INNER = 2, LEAF = 3;
+
+    private final byte[] bytes;
+
+    public ShaMapProof(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    public static ShaMapProof fromHex(String hex) {
+        return new ShaMapProof(B16.decode(hex));
+    }
+
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    public String toHex() {
+        return B16.toString(bytes);
+    }
+
+    static ShaMapProof generate(ShaMapInner root, Collection<Hash256> indexes) {
+        List<Hash256> sorted = new ArrayList<Hash256>(indexes);
+        Collections.sort(sorted);
+        BytesList out = new BytesList();
+        writeInner(root, sorted, 0, sorted.size(), out);
+        return new ShaMapProof(out.bytes());
+    }
+
+    // indexes[from, to) are the sorted indexes under `inner`
+    private static void writeInner(ShaMapInner inner, List<Hash256> indexes,
+                                   int from, int to, BytesList out) {
+        int[] ends = new int[16];
+        int header = 0;
+
+        for (int i = 0, j = from; i < 16; i++) {
+            int start = j;
+            while (j < to && indexes.get(j).nibblet(inner.depth) == i) {
+                j++;
+            }
+            ends[i] = j;
+
+            int kind;
+            if (inner.hasNone(i)) {
+                kind = EMPTY;
+            } else if (start == j) {
+                kind = HASH;
+            } else {
+                kind = inner.getBranch(i).isLeaf() ? LEAF : INNER;
+            }
+            header |= kind << (30 - i * 2);
+        }
+
+        out.add(new byte[]{(byte) (header >>> 24), (byte) (header >>> 16),
+                           (byte) (header >>> 8), (byte) header});
+
+        for (int i = 0; i < 16; i++) {
+            int start = i == 0 ? from : ends[i - 1];
+            switch ((header >>> (30 - i * 2)) & 3) {
+                case HASH:
+                    out.add(inner.branchHash(i).bytes());
+                    break;
+                case INNER:
+                    writeInner(inner.getBranch(i).asInner(), indexes, start, ends[i], out);
+                    break;
+                case LEAF:
+                    writeLeaf(inner.getBranch(i).asLeaf(), out);
+                    break;
+            }
+        }
+    }
+
+    private static void writeLeaf(ShaMapLeaf leaf, BytesList out) {
+        BytesList item = new BytesList();
+        leaf.item.toBytesSink(item);
+        out.add(BinarySerializer.encodeVL(item.bytesLength()));
+        out.add(item);
+        out.add(leaf.index.bytes());
+    }
+}
@@ -0,0 +1,233 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.core.coretypes.STObject;
+import com.weibei.core.coretypes.hash.HalfSha512;
+import com.weibei.core.coretypes.hash.Hash256;
+import com.weibei.core.coretypes.hash.prefixes.HashPrefix;
+import com.weibei.core.coretypes.hash.prefixes.Prefix;
+import com.weibei.core.serialized.BinaryParser;
+import com.weibei.core.types.known.sle.LedgerEntry;
+import com.weibei.core.types.ledger.LedgerHeader;
+
+import java.util.Arrays;
+
+/**
+ * Checks a ShaMapProof against a trusted root hash, without building a
+ * ShaMap. Only the pruned tree the proof describes is kept, to answer which
+ * indexes it proves present or absent.
+ *
+ * Leaves are hashed with the prefix given here, not one taken from the
+ * proof, else the children of an inner could be passed off as a leaf.
+ */
+public class ShaMapProofVerifier {
+    private final Hash256 rootHash;
+    private final byte[] leafPrefix;
+
+    /**
+     * For an account state tree
+     */
+    public ShaMapProofVerifier(Hash256 rootHash) {
+        this(rootHash, HashPrefix.leafNode);
+    }
+
+    /**
+     * @param leafPrefix what the tree's leaves are hashed with, eg.
+     *                   HashPrefix.txNode for a transaction tree
+     */
+    public ShaMapProofVerifier(Hash256 rootHash, Prefix leafPrefix) {
+        if (Arrays.equals(leafPrefix.bytes(), HashPrefix.innerNode.bytes)) {
+            throw new IllegalArgumentException("leaves can't use the inner node prefix");
+        }
+        this.rootHash = rootHash;
+        this.leafPrefix = leafPrefix.bytes();
+    }
+
+    public ShaMapProofVerifier(LedgerHeader header) {
+        this(header.stateHash);
+    }
+
+    /**
+     * @return what the proof proves, or null if it's malformed or doesn't
+     *         hash to the root hash
+     */
+    public Verified verify(ShaMapProof proof) {
+        BinaryParser parser = new BinaryParser(proof.bytes());
+        int[] path = new int[64];
+        PrunedInner root;
+        try {
+            root = readInner(parser, 0, path, leafPrefix);
+        } catch (RuntimeException e) {
+            // Ran off the end, or an invalid VL length etc
+            return null;
+        }
+        if (!parser.end() || !root.hash.equals(rootHash)) {
+            return null;
+        }
+        return new Verified(root);
+    }
+
+    private static PrunedInner readInner(BinaryParser parser, int depth, int[] path,
+                                         byte[] leafPrefix) {
+        if (depth == 64) {
+            throw new IllegalStateException("too deep");
+        }
+        int header = 0;
+        for (int i = 0; i < 4; i++) {
+            header = (header << 8) | parser.readOneInt();
+        }
+
+        PrunedInner inner = new PrunedInner(depth);
+        HalfSha512 half = HalfSha512.prefixed256(HashPrefix.innerNode);
+
+        for (int i = 0; i < 16; i++) {
+            int kind = (header >>> (30 - i * 2)) & 3;
+            inner.kinds[i] = kind;
+            path[depth] = i;
+            Hash256 hash;
+
+            switch (kind) {
+                case ShaMapProof.HASH:
+                    hash = new Hash256(parser.read(32));
+                    break;
+                case ShaMapProof.INNER:
+                    PrunedInner child = readInner(parser, depth + 1, path, leafPrefix);
+                    inner.branches[i] = child;
+                    hash = child.hash;
+                    break;
+                case ShaMapProof.LEAF:
+                    ProvenLeaf leaf = readLeaf(parser, depth, path, leafPrefix);
+                    inner.branches[i] = leaf;
+                    hash = leaf.hash;
+                    break;
+                default:
+                    hash = Hash256.ZERO_256;
+            }
+            half.update(hash);
+        }
+
+        if (header == 0) {
+            // Only an empty root can have no branches
+            if (depth != 0) {
+                throw new IllegalStateException("empty inner");
+            }
+            inner.hash = Hash256.ZERO_256;
+        } else {
+            inner.hash = half.finish();
+        }
+        return inner;
+    }
+
+    private static ProvenLeaf readLeaf(BinaryParser parser, int depth, int[] path,
+                                       byte[] prefix) {
+        byte[] itemBytes = parser.read(parser.readVLLength());
+        Hash256 index = new Hash256(parser.read(32));
+
+        // A leaf can only be on the path its index leads to
+        for (int i = 0; i <= depth; i++) {
+            if (index.nibblet(i) != path[i]) {
+                throw new IllegalStateException("misplaced leaf");
+            }
+        }
+
+        HalfSha512 half = new HalfSha512();
+        half.update(prefix);
+        half.update(itemBytes);
+        half.update(index);
+        return new ProvenLeaf(index, prefix, itemBytes, half.finish());
+    }
+
+    public static class ProvenLeaf {
+        public final Hash256 index;
+        public final byte[] prefix;
+        public final byte[] itemBytes;
+        final Hash256 hash;
+
+        ProvenLeaf(Hash256 index, byte[] prefix, byte[] itemBytes, Hash256 hash) {
+            this.index = index;
+            this.prefix = prefix;
+            this.itemBytes = itemBytes;
+            this.hash = hash;
+        }
+
+        public boolean isLedgerEntry() {
+            return Arrays.equals(prefix, HashPrefix.leafNode.bytes);
+        }
+
+        public LedgerEntry ledgerEntry() {
+            if (!isLedgerEntry()) {
+                throw new IllegalStateException("not an account state leaf");
+            }
+            LedgerEntry le = (LedgerEntry) STObject.translate.fromBytes(itemBytes);
+            le.index(index);
+            return le;
+        }
+    }
+
+    static class PrunedInner {
+        final int depth;
+        final int[] kinds = new int[16];
+        final Object[] branches = new Object[16];
+        Hash256 hash;
+
+        PrunedInner(int depth) {
+            this.depth = depth;
+        }
+    }
+
+    public static class Verified {
+        private final PrunedInner root;
+
+        Verified(PrunedInner root) {
+            this.root = root;
+        }
+
+        /**
+         * @return the leaf at `index`, or null if the proof shows there
+         *         isn't one, or doesn't cover it (see isAbsent)
+         */
+        public ProvenLeaf leaf(Hash256 index) {
+            Object found = find(index);
+            if (found instanceof ProvenLeaf) {
+                ProvenLeaf leaf = (ProvenLeaf) found;
+                if (leaf.index.equals(index)) {
+                    return leaf;
+                }
+            }
+            return null;
+        }
+
+        public boolean isPresent(Hash256 index) {
+            return leaf(index) != null;
+        }
+
+        public boolean isAbsent(Hash256 index) {
+            Object found = find(index);
+            return found == null || found instanceof ProvenLeaf &&
+                                    !((ProvenLeaf) found).index.equals(index);
+        }
+
+        public LedgerEntry ledgerEntry(Hash256 index) {
+            ProvenLeaf leaf = leaf(index);
+            return leaf == null ? null : leaf.ledgerEntry();
+        }
+
+        // null if the path ends at an EMPTY branch, a ProvenLeaf, or
+        // `this` if it ends at a hash, ie. isn't covered by the proof
+        private Object find(Hash256 index) {
+            PrunedInner inner = root;
+            while (true) {
+                int slot = index.nibblet(inner.depth);
+                switch (inner.kinds[slot]) {
+                    case ShaMapProof.EMPTY:
+                        return null;
+                    case ShaMapProof.HASH:
+                        return this;
+                    case ShaMapProof.LEAF:
+                        return inner.branches[slot];
+                    default:
+                        inner = (PrunedInner) inner.branches[slot];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.weibei.core.types.shamap;
+
+import org.json.JSONObject;
+
+/**
+ * The shape of a ShaMap, as of when collect() was called: how deep the
+ * leaves and inners are, and how many branches the inners use. Only nodes
+ * already in memory are counted, nothing is loaded from a NodeStore.
+ */
+public class ShaMapStats {
+    public long inners;
+    public long leaves;
+    public long dirtyInners;
+    public int maxDepth;
+    public long[] innersByDepth = new long[64];
+    public long[] leavesByDepth = new long[65];
+    // indexed by number of branches used, 0 to 16
+    public long[] innersByFanOut = new long[17];
+
+    public static ShaMapStats collect(ShaMapInner root) {
+        ShaMapStats stats = new ShaMapStats();
+        stats.walk(root);
+        return stats;
+    }
+
+    private void walk(ShaMapInner inner) {
+        inners++;
+        innersByDepth[inner.depth]++;
+        innersByFanOut[Integer.bitCount(inner.slotBits)]++;
+        maxDepth = Math.max(maxDepth, inner.depth);
+        if (inner.hash == null && !inner.empty()) {
+            dirtyInners++;
+        }
+        for (int i = 0; i < 16; i++) {
+            ShaMapNode branch = inner.resolvedBranch(i);
+            if (branch == null) {
+                continue;
+            }
+            if (branch.isInner()) {
+                walk(branch.asInner());
+            } else {
+                leaves++;
+                leavesByDepth[inner.depth + 1]++;
+                maxDepth = Math.max(maxDepth, inner.depth + 1);
+            }
+        }
+    }
+
+    public double averageFanOut() {
+        long used = 0;
+        for (int i = 0; i < innersByFanOut.length; i++) {
+            used += i * innersByFanOut[i];
+        }
+        return inners == 0 ? 0 : (double) used / inners;
+    }
+
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("inners", inners);
+        json.put("leaves", leaves);
+        json.put("dirty_inners", dirtyInners);
+        json.put("max_depth", maxDepth);
+        json.put("average_fan_out", averageFanOut());
+        json.put("inners_by_depth", ShaMapCounters.histogram(innersByDepth));
+        json.put("leaves_by_depth", ShaMapCounters.histogram(leavesByDepth));
+        json.put("inners_by_fan_out", ShaMapCounters.histogram(innersByFanOut));
+        return json;
+    }
+}
@@ -0,0 +1,82 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.core.coretypes.hash.Hash256;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lets one writer thread publish snapshots of the map it's modifying, for
+ * any number of reader threads to query without locking.
+ *
+ * publish() hashes the whole map, then takes a ShaMap.copy() of it. Nodes
+ * are never modified once they belong to an older version than the map's, so
+ * the writer copies any node it changes from then on, and the snapshot's
+ * nodes (including their cached hashes) never change again. The snapshot is
+ * published with a volatile write, and current() is a volatile read, so a
+ * reader sees everything the writer did before publishing.
+ *
+ * Readers must only read: getLeaf, getLE, cursors, walks, diffs, hash() and
+ * so on. Anything that modifies a snapshot, or faults nodes in with a
+ * NodeLoader (which isn't thread safe), isn't safe to do concurrently, so
+ * the maps published should be fully in memory.
+ *
+ * Snapshots aren't freed explicitly. An old one is garbage once it's been
+ * replaced and no reader holds it anymore, and then only the nodes no newer
+ * snapshot (or the writer's map) shares are freed.
+ */
+public class SnapshotPublisher<M extends ShaMap> {
+    private final AtomicReference<Snapshot<M>> current = new AtomicReference<Snapshot<M>>();
+    private final ParallelHasher hasher;
+
+    public static class Snapshot<M extends ShaMap> {
+        public final long ledgerIndex;
+        public final Hash256 hash;
+        private final M map;
+
+        Snapshot(long ledgerIndex, Hash256 hash, M map) {
+            this.ledgerIndex = ledgerIndex;
+            this.hash = hash;
+            this.map = map;
+        }
+
+        /**
+         * @return the map as of ledgerIndex, which must not be modified
+         */
+        public M map() {
+            return map;
+        }
+    }
+
+    public SnapshotPublisher() {
+        this(null);
+    }
+
+    /**
+     * @param hasher used to hash maps before publishing them, or null to
+     *               hash on the writer's thread
+     */
+    public SnapshotPublisher(ParallelHasher hasher) {
+        this.hasher = hasher;
+    }
+
+    /**
+     * Called by the writer, which carries on modifying `map` afterwards.
+     */
+    public Snapshot<M> publish(long ledgerIndex, M map) {
+        Hash256 hash = hasher == null ? map.hash() : hasher.hash(map);
+        @SuppressWarnings("unchecked")
+        M copy = (M) map.copy();
+        Snapshot<M> snapshot = new Snapshot<M>(ledgerIndex, hash, copy);
+        current.set(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * @return the latest snapshot, or null if none have been published.
+     *         Readers should hold onto it for as long as they need a
+     *         consistent view, rather than calling this again.
+     */
+    public Snapshot<M> current() {
+        return current.get();
+    }
+}
@@ -0,0 +1,32 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.core.coretypes.hash.Hash256;
+
+/**
+ * The child hashes of an inner that was faulted in from a NodeStore. A
+ * branch that's null in the inner, but has a hash here, just hasn't been
+ * loaded (yet, or again since being evicted).
+ */
+final class StoredBranches {
+    final NodeLoader loader;
+    final Hash256[] hashes;
+
+    StoredBranches(NodeLoader loader, Hash256[] hashes) {
+        this.loader = loader;
+        this.hashes = hashes;
+    }
+
+    ShaMapNode resolve(ShaMapInner parent, int i, ShaMapNode branch) {
+        if (branch != null) {
+            loader.touch(branch);
+        } else if (hashes[i] != null) {
+            branch = loader.load(parent, i, hashes[i]);
+            parent.setResolved(i, branch);
+        }
+        return branch;
+    }
+
+    StoredBranches copy() {
+        return new StoredBranches(loader, hashes.clone());
+    }
+}
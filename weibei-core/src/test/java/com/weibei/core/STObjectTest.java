@@ -16,6 +16,7 @@ import com.weibei.core.serialized.BinarySerializer;
 import com.weibei.core.serialized.BytesList;
 import com.weibei.core.serialized.enums.EngineResult;
 import com.weibei.core.serialized.enums.LedgerEntryType;
+import com.weibei.core.serialized.enums.TransactionType;
 import com.weibei.core.types.known.sle.LedgerEntry;
 import com.weibei.core.types.known.sle.entries.AccountRoot;
 import com.weibei.core.types.known.sle.entries.DirectoryNode;
@@ -635,4 +636,45 @@ public class STObjectTest {
         Hash256 reHash = Hash256.signingHash(blob);
         assertEquals("63641BEDC50E9D2C1519042E78CFB53354DE94144ED67ED8C1F05A3621219209", reHash.toHex());
     }
+
+    @Test
+    public void testFieldsKeptInCanonicalOrder() {
+        STObject so = new STObject();
+        so.put(Field.Fee, Amount.fromString("15"));
+        so.put(Field.Account, AccountID.fromAddress("rHb9CJAWyB4rj91VRWn96DkukG4bwdtyTh"));
+        so.put(Field.Sequence, new UInt32(35));
+        so.put(Field.TransactionType, TransactionType.Payment);
+        so.put(Field.Flags, new UInt32(0));
+        so.put(Field.Destination, AccountID.fromAddress("rHb9CJAWyB4rj91VRWn96DkukG4bwdtyTh"));
+
+        Field[] expected = {Field.TransactionType, Field.Flags, Field.Sequence,
+                            Field.Fee, Field.Account, Field.Destination};
+        Iterator<Field> fields = so.iterator();
+        for (Field field : expected) {
+            assertEquals(field, fields.next());
+        }
+        assertFalse(fields.hasNext());
+
+        so.put(Field.Sequence, new UInt32(36));
+        assertEquals(6, so.size());
+        assertEquals(36, so.get(UInt32.Sequence).intValue());
+        assertEquals(so.get(Field.Flags), so.remove(Field.Flags));
+        assertFalse(so.has(Field.Flags));
+        assertNull(so.remove(Field.Flags));
+        assertEquals(5, so.size());
+
+        // Removing while iterating
+        Iterator<Field> iterator = so.iterator();
+        iterator.next();
+        iterator.next();
+        iterator.remove();
+        assertEquals(Field.Fee, iterator.next());
+        assertFalse(so.has(Field.Sequence));
+
+        String hex = so.toHex();
+        STObject parsed = STObject.fromHex(hex);
+        assertEquals(hex, parsed.toHex());
+        assertEquals(so.getFields(), parsed.getFields());
+        assertEquals(so.prettyJSON(), parsed.prettyJSON());
+    }
 }
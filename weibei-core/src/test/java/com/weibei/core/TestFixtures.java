@@ -1,7 +1,14 @@
 package com.weibei.core;
 
 import com.weibei.core.coretypes.AccountID;
+import com.weibei.core.coretypes.STObject;
+import com.weibei.core.coretypes.hash.Hash256;
+import com.weibei.core.types.known.sle.LedgerEntry;
 import com.weibei.crypto.ecdsa.Seed;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Random;
 
 public class TestFixtures {
     /*
@@ -30,4 +37,53 @@ public class TestFixtures {
 
     public static AccountID root_account = AccountID.fromKeyPair(Seed.fromBase58(master_seed).keyPair());
     public static AccountID bob_account = AccountID.fromKeyPair(Seed.fromBase58("shn6zJ8zzkaoFSfsEWvJLZf3V344C").keyPair());
+
+    public static JSONObject accountRootJSON(Hash256 index, int sequence) {
+        JSONObject json = new JSONObject();
+        json.put("LedgerEntryType", "AccountRoot");
+        json.put("Account", master_seed_address);
+        json.put("Balance", "1000000");
+        json.put("Flags", 0);
+        json.put("OwnerCount", 0);
+        json.put("Sequence", sequence);
+        json.put("index", index.toHex());
+        return json;
+    }
+
+    public static LedgerEntry accountRoot(Hash256 index, int sequence) {
+        return (LedgerEntry) STObject.fromJSONObject(accountRootJSON(index, sequence));
+    }
+
+    /**
+     * @return n AccountRoots at random indexes, the same ones for a given n
+     */
+    public static ArrayList<LedgerEntry> accountRoots(int n) {
+        Random random = new Random(n);
+        ArrayList<LedgerEntry> entries = new ArrayList<LedgerEntry>();
+        for (int i = 0; i < n; i++) {
+            entries.add(accountRoot(randomKey(random), i + 1));
+        }
+        return entries;
+    }
+
+    /**
+     * @return n random keys, the same ones for a given n
+     */
+    public static ArrayList<Hash256> randomKeys(int n) {
+        return randomKeys(n, new Random(n));
+    }
+
+    public static ArrayList<Hash256> randomKeys(int n, Random random) {
+        ArrayList<Hash256> keys = new ArrayList<Hash256>();
+        for (int i = 0; i < n; i++) {
+            keys.add(randomKey(random));
+        }
+        return keys;
+    }
+
+    public static Hash256 randomKey(Random random) {
+        byte[] b = new byte[32];
+        random.nextBytes(b);
+        return new Hash256(b);
+    }
 }
@@ -1,5 +1,6 @@
 package com.weibei.core.coretypes;
 
+import com.weibei.encodings.common.B16;
 import org.json.JSONArray;
 import org.junit.Test;
 
@@ -114,5 +115,11 @@ public class PathSetTest {
 
         PathSet parsed = translator.fromHex(hex);
         assertEquals(hex, parsed.toHex());
+        assertEquals(hex.length() / 2, parsed.encodedSize());
+
+        // Serialized in one pass, into an array of exactly encodedSize()
+        STObject tx = STObject.fromHex(weibeiDHex);
+        assertEquals(weibeiDHex.length() / 2, tx.encodedSize());
+        assertEquals(weibeiDHex, B16.toString(tx.toBytes()));
     }
 }
@@ -0,0 +1,78 @@
+package com.weibei.core.serialized;
+
+import com.weibei.config.Config;
+import com.weibei.core.binary.STReader;
+import com.weibei.core.types.known.sle.LedgerEntry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static com.weibei.core.TestFixtures.accountRoot;
+import static com.weibei.core.TestFixtures.randomKey;
+import static junit.framework.TestCase.*;
+
+public class ByteBufferBinaryParserTest {
+    static {
+        Config.initBouncy();
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReadsAcrossMappedWindows() throws Exception {
+        Random random = new Random(23);
+        ArrayList<LedgerEntry> entries = new ArrayList<LedgerEntry>();
+        BytesList bytes = new BytesList();
+        BinarySerializer serializer = new BinarySerializer(bytes);
+        for (int i = 0; i < 500; i++) {
+            LedgerEntry le = accountRoot(randomKey(random), i);
+            entries.add(le);
+            bytes.add(le.index().bytes());
+            serializer.addLengthEncoded(le);
+        }
+        File file = folder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(bytes.bytes());
+        out.close();
+
+        // Small enough that most entries straddle a window
+        ByteBufferBinaryParser parser = ByteBufferBinaryParser.fromFile(file, 200);
+        STReader reader = new STReader(parser);
+        for (LedgerEntry le : entries) {
+            assertFalse(reader.end());
+            assertEquals(le.prettyJSON(), reader.readLE().prettyJSON());
+        }
+        assertTrue(reader.end());
+        assertEquals(bytes.bytesLength(), parser.position());
+        parser.close();
+
+        reader = STReader.fromFile(file.getPath());
+        assertEquals(entries.get(0).prettyJSON(), reader.readLE().prettyJSON());
+    }
+
+    @Test
+    public void testSlicesAndInts() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(16);
+        buffer.put(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, (byte) 0xFF, (byte) 0xFE, 9, 10, 11, 12, 13, 14});
+        buffer.flip();
+        ByteBufferBinaryParser parser = new ByteBufferBinaryParser(buffer);
+
+        assertEquals(0x0102, parser.readUIntN(2));
+        ByteBuffer slice = parser.slice(4);
+        assertEquals(4, slice.remaining());
+        assertEquals(3, slice.get(0));
+        assertTrue(slice.isReadOnly());
+        assertEquals(0x0708FFFEL, parser.readUIntN(4));
+        assertEquals(10, parser.pos());
+        assertEquals(16, parser.size());
+        assertEquals(0x090A0B0C0D0EL, parser.readUIntN(6));
+        assertTrue(parser.end());
+    }
+}
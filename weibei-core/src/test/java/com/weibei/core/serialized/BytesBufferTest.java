@@ -0,0 +1,63 @@
+package com.weibei.core.serialized;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static junit.framework.TestCase.*;
+
+public class BytesBufferTest {
+    @Test
+    public void testMatchesBytesList() throws Exception {
+        Random random = new Random(26);
+        BytesBuffer buffer = new BytesBuffer(4);
+        BytesList list = new BytesList();
+        for (int i = 0; i < 200; i++) {
+            if (i % 3 == 0) {
+                byte b = (byte) random.nextInt();
+                buffer.add(b);
+                list.add(b);
+            } else {
+                byte[] bytes = new byte[random.nextInt(40)];
+                random.nextBytes(bytes);
+                buffer.add(bytes);
+                list.add(bytes);
+            }
+        }
+        assertEquals(list.bytesLength(), buffer.bytesLength());
+        assertTrue(Arrays.equals(list.bytes(), buffer.bytes()));
+        assertEquals(list.bytesHex(), buffer.bytesHex());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        buffer.writeTo(out);
+        assertTrue(Arrays.equals(list.bytes(), out.toByteArray()));
+        ByteBuffer bb = ByteBuffer.allocate(buffer.bytesLength());
+        buffer.writeTo(bb);
+        assertTrue(Arrays.equals(list.bytes(), bb.array()));
+
+        buffer.reset();
+        buffer.add(new byte[]{1, 2});
+        assertEquals("0102", buffer.bytesHex());
+    }
+
+    @Test
+    public void testPooling() {
+        BytesBuffer a = BytesBuffer.acquire();
+        a.add((byte) 7);
+        BytesBuffer b = BytesBuffer.acquire();
+        assertNotSame(a, b);
+        a.release();
+        BytesBuffer c = BytesBuffer.acquire();
+        assertSame(a, c);
+        assertEquals(0, c.bytesLength());
+
+        // Big buffers are left to the GC
+        BytesBuffer big = BytesBuffer.acquire();
+        big.add(new byte[BytesBuffer.MAX_POOLED_CAPACITY + 1]);
+        big.release();
+        assertNotSame(big, BytesBuffer.acquire());
+    }
+}
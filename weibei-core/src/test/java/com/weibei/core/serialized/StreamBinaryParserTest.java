@@ -0,0 +1,107 @@
+package com.weibei.core.serialized;
+
+import com.weibei.config.Config;
+import com.weibei.core.binary.STReader;
+import com.weibei.core.types.known.sle.LedgerEntry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static com.weibei.core.TestFixtures.accountRoot;
+import static com.weibei.core.TestFixtures.randomKey;
+import static junit.framework.TestCase.*;
+
+public class StreamBinaryParserTest {
+    static {
+        Config.initBouncy();
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Returns at most 7 bytes a read, and sometimes none, like some
+    // decompressing streams
+    static class ShortReads extends FilterInputStream {
+        int reads = 0;
+
+        ShortReads(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (reads++ % 3 == 0) {
+                return 0;
+            }
+            return super.read(b, off, Math.min(len, 7));
+        }
+
+        @Override
+        public long skip(long n) {
+            return 0;
+        }
+    }
+
+    @Test
+    public void testShortReadsAndUnknownLength() throws Exception {
+        Random random = new Random(24);
+        ArrayList<LedgerEntry> entries = new ArrayList<LedgerEntry>();
+        byte[] bytes = entries(random, entries, 300);
+
+        StreamBinaryParser parser = new StreamBinaryParser(
+                new ShortReads(new ByteArrayInputStream(bytes)), -1, 16);
+        STReader reader = new STReader(parser);
+        for (LedgerEntry le : entries) {
+            assertFalse(reader.end());
+            assertEquals(le.prettyJSON(), reader.readLE().prettyJSON());
+        }
+        assertTrue(reader.end());
+        assertEquals(bytes.length, parser.position());
+
+        parser = new StreamBinaryParser(new ShortReads(new ByteArrayInputStream(bytes)), -1, 16);
+        parser.skip(40);
+        assertEquals(40, parser.position());
+        assertEquals(bytes[40], parser.readOne());
+        try {
+            parser.read(bytes.length);
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("Expected to read more bytes", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testGZippedFile() throws Exception {
+        Random random = new Random(25);
+        ArrayList<LedgerEntry> entries = new ArrayList<LedgerEntry>();
+        byte[] bytes = entries(random, entries, 1000);
+        File file = folder.newFile("entries.bin.gz");
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+        out.write(bytes);
+        out.close();
+
+        STReader reader = STReader.fromFile(file.getPath());
+        int read = 0;
+        while (!reader.end()) {
+            assertEquals(entries.get(read++).index(), reader.readLE().index());
+        }
+        assertEquals(entries.size(), read);
+    }
+
+    private static byte[] entries(Random random, ArrayList<LedgerEntry> entries, int n) {
+        BytesList bytes = new BytesList();
+        BinarySerializer serializer = new BinarySerializer(bytes);
+        for (int i = 0; i < n; i++) {
+            LedgerEntry le = accountRoot(randomKey(random), i);
+            entries.add(le);
+            bytes.add(le.index().bytes());
+            serializer.addLengthEncoded(le);
+        }
+        return bytes.bytes();
+    }
+}
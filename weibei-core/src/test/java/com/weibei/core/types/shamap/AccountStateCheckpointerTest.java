@@ -0,0 +1,120 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.config.Config;
+import com.weibei.core.coretypes.hash.Hash256;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static com.weibei.core.TestFixtures.randomKey;
+import static com.weibei.core.types.shamap.ReplayPipelineTest.genesis;
+import static com.weibei.core.types.shamap.ReplayPipelineTest.transaction;
+import static junit.framework.TestCase.*;
+
+public class AccountStateCheckpointerTest {
+    static {
+        Config.initBouncy();
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testResumeFromCheckpoint() throws Exception {
+        Random random = new Random(21);
+        ArrayList<Hash256> accounts = new ArrayList<Hash256>();
+        for (int i = 0; i < 1000; i++) {
+            accounts.add(randomKey(random));
+        }
+        File directory = folder.newFolder();
+        AccountStateCheckpointer checkpointer = new AccountStateCheckpointer(directory);
+        assertNull(checkpointer.latest());
+        assertNull(checkpointer.resume(0, true));
+
+        AccountStateBuilder builder = new AccountStateBuilder(genesis(accounts), 10);
+        checkpointer.checkpoint(builder);
+        int full = checkpointer.backend().size();
+
+        // Stop part way through ledger 12
+        int sequence = 1;
+        for (int i = 0; i < 5; i++) {
+            builder.onTransaction(transaction(random, 11, i, accounts.get(i), sequence++).parse());
+        }
+        Hash256 accountHash = randomKey(random);
+        builder.onLedgerClose(11, accountHash, randomKey(random));
+        for (int i = 0; i < 3; i++) {
+            builder.onTransaction(transaction(random, 12, i, accounts.get(i), sequence++).parse());
+        }
+        AccountStateCheckpointer.Checkpoint checkpoint = checkpointer.checkpoint(builder);
+        assertEquals(builder.state().hash(), checkpoint.stateHash);
+        // Only the changed paths were written
+        assertTrue(checkpointer.backend().size() - full < 60);
+        checkpointer.close();
+
+        checkpointer = new AccountStateCheckpointer(directory);
+        checkpoint = checkpointer.latest();
+        assertEquals(11, checkpoint.ledgerIndex);
+        assertEquals(3, checkpoint.nextTransactionIndex);
+        assertEquals(8, checkpoint.totalTransactions);
+        assertEquals(accountHash, checkpoint.accountHash);
+        assertTrue(checkpointer.verify(checkpoint.stateHash) > 1000);
+
+        AccountStateBuilder resumed = checkpointer.resume(0, true);
+        assertEquals(builder.state().hash(), resumed.state().hash());
+        assertEquals(11, resumed.currentLedgerIndex());
+        assertEquals(accountHash, resumed.targetAccountHash());
+
+        // Both carry on the same
+        for (AccountStateBuilder b : new AccountStateBuilder[]{builder, resumed}) {
+            b.onTransaction(transaction(new Random(1), 12, 3, accounts.get(7), sequence).parse());
+        }
+        assertEquals(builder.state().hash(), resumed.state().hash());
+        assertEquals(builder.state().getLE(accounts.get(7)).prettyJSON(),
+                     resumed.state().getLE(accounts.get(7)).prettyJSON());
+        int before = checkpointer.backend().size();
+        checkpointer.checkpoint(resumed);
+        assertTrue(checkpointer.backend().size() - before < 10);
+        checkpointer.close();
+    }
+
+    @Test
+    public void testCorruptCheckpointIsRejected() throws Exception {
+        Random random = new Random(22);
+        ArrayList<Hash256> accounts = new ArrayList<Hash256>();
+        for (int i = 0; i < 10; i++) {
+            accounts.add(randomKey(random));
+        }
+        File directory = folder.newFolder();
+        AccountStateCheckpointer checkpointer = new AccountStateCheckpointer(directory);
+        checkpointer.checkpoint(new AccountStateBuilder(genesis(accounts), 10));
+        checkpointer.close();
+
+        RandomAccessFile file = new RandomAccessFile(
+                new File(directory, AccountStateCheckpointer.CHECKPOINT_FILE), "rw");
+        file.seek(40);
+        int b = file.read();
+        file.seek(40);
+        file.write(b ^ 1);
+        file.close();
+
+        checkpointer = new AccountStateCheckpointer(directory);
+        try {
+            checkpointer.resume(0, false);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("Checkpoint is corrupt", e.getMessage());
+        }
+        try {
+            checkpointer.verify(randomKey(random));
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().startsWith("Checkpoint is missing node"));
+        }
+        checkpointer.close();
+    }
+}
@@ -0,0 +1,96 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.config.Config;
+import com.weibei.core.coretypes.hash.Hash256;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static com.weibei.core.TestFixtures.accountRoot;
+import static com.weibei.core.TestFixtures.randomKey;
+import static junit.framework.TestCase.*;
+
+public class AccountStateHistoryTest {
+    static {
+        Config.initBouncy();
+    }
+
+    @Test
+    public void testTimeTravelReadsAndDiffs() {
+        Random random = new Random(3);
+        Hash256 account = randomKey(random);
+        ArrayList<Hash256> hashes = new ArrayList<Hash256>();
+
+        AccountState state = new AccountState();
+        for (int i = 0; i < 500; i++) {
+            state.addLE(accountRoot(randomKey(random), i));
+        }
+        state.addLE(accountRoot(account, 0));
+
+        AccountStateHistory history = new AccountStateHistory(50);
+        for (int ledger = 1; ledger <= 60; ledger++) {
+            state.updateLE(accountRoot(account, ledger));
+            state.addLE(accountRoot(randomKey(random), ledger));
+            history.put(ledger, state);
+            hashes.add(state.hash());
+        }
+
+        assertEquals(50, history.size());
+        assertEquals(11, history.oldest());
+        assertFalse(history.has(10));
+        for (int ledger = 11; ledger <= 60; ledger++) {
+            assertEquals(hashes.get(ledger - 1), history.hash(ledger));
+            assertEquals(accountRoot(account, ledger).prettyJSON(),
+                         history.getLE(account, ledger).prettyJSON());
+        }
+
+        ShaMapDiff diff = history.diff(20, 30);
+        assertEquals(10, diff.added.size());
+        assertEquals(1, diff.modified.size());
+        assertTrue(diff.modified.contains(account));
+        assertEquals(0, diff.deleted.size());
+
+        // Modifying a version taken out of the history doesn't touch it
+        AccountState old = history.get(20);
+        old.removeLeaf(account);
+        assertEquals(hashes.get(19), history.hash(20));
+
+        try {
+            history.getLE(account, 5);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    @Test
+    public void testFootprintsCountSharedNodesOnce() {
+        Random random = new Random(4);
+        AccountState state = new AccountState();
+        for (int i = 0; i < 1000; i++) {
+            state.addLE(accountRoot(randomKey(random), i));
+        }
+        AccountStateHistory history = new AccountStateHistory(3);
+        history.put(1, state);
+        state.addLE(accountRoot(randomKey(random), 1));
+        history.put(2, state);
+        history.put(3, state);
+
+        ArrayList<AccountStateHistory.VersionFootprint> footprints = history.footprints();
+        assertEquals(3, footprints.size());
+        AccountStateHistory.VersionFootprint first = footprints.get(0);
+        AccountStateHistory.VersionFootprint second = footprints.get(1);
+        AccountStateHistory.VersionFootprint third = footprints.get(2);
+
+        assertEquals(1000, first.leaves);
+        assertEquals(first.inners, first.ownedInners);
+        assertEquals(1001, second.leaves);
+        assertEquals(1, second.ownedLeaves);
+        // Only the path to the new leaf was copied
+        assertTrue(second.ownedInners < 10);
+        // Nothing changed, but it has its own root
+        assertEquals(0, third.ownedLeaves);
+        assertEquals(1, third.ownedInners);
+        assertEquals(3, history.footprintsJSON().length());
+    }
+}
@@ -0,0 +1,85 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.config.Config;
+import com.weibei.core.coretypes.hash.Hash256;
+import com.weibei.core.coretypes.uint.UInt32;
+import com.weibei.core.types.known.sle.LedgerEntry;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.weibei.core.TestFixtures.accountRoot;
+import static com.weibei.core.TestFixtures.randomKey;
+import static junit.framework.TestCase.*;
+
+public class LazyLedgerEntryItemTest {
+    static {
+        Config.initBouncy();
+    }
+
+    @Test
+    public void testHashesLikeParsedEntries() {
+        Random random = new Random(5);
+        AccountState eager = new AccountState();
+        AccountState lazy = new AccountState();
+        for (int i = 0; i < 1000; i++) {
+            LedgerEntry le = accountRoot(randomKey(random), i);
+            eager.addLE(le);
+            lazy.addItem(le.index(), LazyLedgerEntryItem.fromEntry(le));
+        }
+        assertEquals(eager.hash(), lazy.hash());
+    }
+
+    @Test
+    public void testPeekingThenUpdating() {
+        Hash256 index = randomKey(new Random(6));
+        AccountState state = new AccountState();
+        state.addItem(index, LazyLedgerEntryItem.fromEntry(accountRoot(index, 1)));
+        Hash256 before = state.hash();
+        LazyLedgerEntryItem item = (LazyLedgerEntryItem) state.getLeaf(index).item;
+
+        assertEquals(accountRoot(index, 1).prettyJSON(), item.peek().prettyJSON());
+        assertFalse(item.isParsed());
+
+        AccountState snapshot = state.copy();
+        ShaMapLeaf leaf = state.getLeafForUpdating(index);
+        AccountState.entryForUpdating(leaf).put(UInt32.Sequence, new UInt32(2));
+
+        AccountState expected = new AccountState();
+        expected.addLE(accountRoot(index, 2));
+        assertEquals(expected.hash(), state.hash());
+        // The copy on write left the snapshot's bytes alone
+        assertFalse(item.isParsed());
+        assertEquals(before, snapshot.hash());
+        assertEquals(accountRoot(index, 1).prettyJSON(), snapshot.getLE(index).prettyJSON());
+    }
+
+    @Test
+    public void testGetLEIsTheLiveEntryForBothItemTypes() {
+        Hash256 index = randomKey(new Random(7));
+        AccountState eager = new AccountState();
+        eager.addLE(accountRoot(index, 1));
+        AccountState lazy = new AccountState();
+        lazy.addItem(index, LazyLedgerEntryItem.fromEntry(accountRoot(index, 1)));
+
+        for (AccountState state : new AccountState[]{eager, lazy}) {
+            LedgerEntry le = state.getLE(index);
+            assertSame(le, state.getLE(index));
+            le.put(UInt32.Sequence, new UInt32(2));
+            assertEquals(2, state.getLE(index).get(UInt32.Sequence).intValue());
+            // It's what the leaf serializes from now on
+            ShaMapLeaf leaf = state.getLeafForUpdating(index);
+            assertSame(le, AccountState.entryForUpdating(leaf));
+        }
+        assertEquals(eager.hash(), lazy.hash());
+
+        // peek() doesn't keep what it parsed, so changes to it go nowhere
+        LazyLedgerEntryItem item = LazyLedgerEntryItem.fromEntry(accountRoot(index, 1));
+        LedgerEntry peeked = item.peek();
+        assertNotSame(peeked, item.peek());
+        peeked.put(UInt32.Sequence, new UInt32(3));
+        assertEquals(1, item.peek().get(UInt32.Sequence).intValue());
+        assertFalse(item.isParsed());
+        assertSame(item.value(), item.peek());
+    }
+}
@@ -0,0 +1,87 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.config.Config;
+import com.weibei.core.coretypes.STObject;
+import com.weibei.core.coretypes.hash.Hash256;
+import com.weibei.core.types.known.sle.LedgerEntry;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.StringReader;
+import java.util.ArrayList;
+
+import static com.weibei.core.TestFixtures.accountRootJSON;
+import static junit.framework.TestCase.assertEquals;
+
+public class LedgerDumpReaderTest {
+    static {
+        Config.initBouncy();
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWrappers() throws Exception {
+        JSONArray entries = accountRoots();
+        String ledger = "{\"accepted\": true," +
+                "\"transactions\": [{\"Memo\": \"}]{[\\\"\"}, [1, 2, {}]]," +
+                "\"accountState\": " + entries + ", \"closed\": true}";
+
+        String[] dumps = {
+                ledger,
+                "{\"ledger\": " + ledger + "}",
+                "{\"id\": 1, \"result\": {\"ledger\": " + ledger + ", \"status\": \"success\"}}"
+        };
+        for (String dump : dumps) {
+            final ArrayList<LedgerEntry> read = new ArrayList<LedgerEntry>();
+            new LedgerDumpReader(new StringReader(dump)).readAccountState(new LedgerEntryVisitor() {
+                @Override
+                public void onEntry(LedgerEntry entry) {
+                    read.add(entry);
+                }
+            });
+            assertEquals(entries.length(), read.size());
+            for (int i = 0; i < read.size(); i++) {
+                assertEquals(entries.getJSONObject(i).getString("index"), read.get(i).index().toHex());
+            }
+        }
+    }
+
+    @Test
+    public void testLoadFromLedgerDump() throws Exception {
+        JSONArray entries = accountRoots();
+        File dump = folder.newFile();
+        FileWriter writer = new FileWriter(dump);
+        writer.write(new JSONObject().put("result", new JSONObject()
+                .put("ledger", new JSONObject().put("accountState", entries))).toString());
+        writer.close();
+
+        AccountState state = AccountState.loadFromLedgerDump(dump.getPath());
+        AccountState inserted = new AccountState();
+        for (int i = 0; i < entries.length(); i++) {
+            inserted.addLE((LedgerEntry) STObject.fromJSONObject(entries.getJSONObject(i)));
+        }
+        assertEquals(inserted.hash(), state.hash());
+    }
+
+    private JSONArray accountRoots() {
+        JSONArray entries = new JSONArray();
+        // Deliberately not in index order
+        String[] indexes = {
+                "2B6AC232AA4C4BE41BF49D2459FA4A0347E1B543A4C92FCEE0821C0201E2E9A8",
+                "0B6AC232AA4C4BE41BF49D2459FA4A0347E1B543A4C92FCEE0821C0201E2E9A8",
+                "2B7AC232AA4C4BE41BF49D2459FA4A0347E1B543A4C92FCEE0821C0201E2E9A8",
+                "FB6AC232AA4C4BE41BF49D2459FA4A0347E1B543A4C92FCEE0821C0201E2E9A8",
+        };
+        for (int i = 0; i < indexes.length; i++) {
+            entries.put(accountRootJSON(Hash256.fromHex(indexes[i]), i + 1));
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,159 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.config.Config;
+import com.weibei.core.coretypes.hash.Hash256;
+import com.weibei.core.coretypes.hash.prefixes.HashPrefix;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static junit.framework.TestCase.*;
+
+public class LogStructuredBackendTest {
+    static {
+        Config.initBouncy();
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LogStructuredBackend open(File dir) {
+        return new LogStructuredBackend(dir, LogStructuredBackend.SyncPolicy.BATCH, 1024, 64 * 1024);
+    }
+
+    @Test
+    public void testPutGetAndReopen() throws Exception {
+        File dir = folder.newFolder();
+        LogStructuredBackend backend = open(dir);
+        NodeStore store = new NodeStore(backend);
+
+        ArrayList<Hash256> keys = new ArrayList<Hash256>();
+        for (int i = 0; i < 5000; i++) {
+            keys.add(store.set(leaf(i)));
+        }
+        // Some are still only buffered
+        assertTrue(Arrays.equals(leaf(4999), store.get(keys.get(4999))));
+        backend.close();
+
+        backend = open(dir);
+        store = new NodeStore(backend);
+        assertEquals(5000, backend.size());
+        for (int i = 0; i < 5000; i++) {
+            assertTrue(Arrays.equals(leaf(i), store.get(keys.get(i))));
+        }
+        assertNull(store.get(Hash256.ZERO_256));
+        backend.close();
+    }
+
+    @Test
+    public void testTornRecordIsDiscardedOnOpen() throws Exception {
+        File dir = folder.newFolder();
+        LogStructuredBackend backend = open(dir);
+        Hash256 key = new NodeStore(backend).set(leaf(1));
+        backend.close();
+
+        File[] segments = dir.listFiles();
+        Arrays.sort(segments);
+        FileOutputStream out = new FileOutputStream(segments[0], true);
+        out.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10});
+        out.close();
+        // Pretend the index never saw any of it
+        assertTrue(new File(dir, LogStructuredBackend.INDEX_FILE).delete());
+
+        backend = open(dir);
+        assertTrue(Arrays.equals(leaf(1), backend.get(key)));
+        Hash256 another = new NodeStore(backend).set(leaf(2));
+        backend.flush();
+        assertTrue(Arrays.equals(leaf(2), backend.get(another)));
+        backend.close();
+    }
+
+    @Test
+    public void testCompactionDropsUnreachableNodes() throws Exception {
+        File dir = folder.newFolder();
+        LogStructuredBackend backend = open(dir);
+        NodeStore store = new NodeStore(backend);
+
+        ArrayList<Hash256> live = new ArrayList<Hash256>();
+        ArrayList<Hash256> dead = new ArrayList<Hash256>();
+        for (int i = 0; i < 16; i++) {
+            live.add(store.set(leaf(i)));
+            dead.add(store.set(leaf(i + 100)));
+        }
+        Hash256 root = store.set(inner(live));
+        Hash256 oldRoot = store.set(inner(dead));
+
+        LogStructuredBackend.CompactionResult result =
+                backend.compactInBackground(Collections.singletonList(root)).get();
+        assertEquals(17, result.recordsKept);
+        assertEquals(17, result.recordsDropped);
+        assertTrue(result.bytesAfter < result.bytesBefore);
+        backend.close();
+
+        backend = open(dir);
+        assertNotNull(backend.get(root));
+        assertNull(backend.get(oldRoot));
+        for (int i = 0; i < 16; i++) {
+            assertTrue(Arrays.equals(leaf(i), backend.get(live.get(i))));
+            assertNull(backend.get(dead.get(i)));
+        }
+        backend.close();
+    }
+
+    @Test
+    public void testCloseDuringBackgroundCompaction() throws Exception {
+        File dir = folder.newFolder();
+        LogStructuredBackend backend = open(dir);
+        NodeStore store = new NodeStore(backend);
+
+        ArrayList<Hash256> live = new ArrayList<Hash256>();
+        for (int i = 0; i < 40000; i++) {
+            Hash256 key = store.set(leaf(i));
+            if (i % 2 == 0) {
+                live.add(key);
+            }
+        }
+        Future<LogStructuredBackend.CompactionResult> compaction =
+                backend.compactInBackground(live);
+        Thread.sleep(50);
+        backend.close();
+        assertTrue(compaction.isDone());
+        try {
+            compaction.get();
+        } catch (ExecutionException e) {
+            // Stopped part way, or closed before it started
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        backend = open(dir);
+        for (int i = 0; i < live.size(); i++) {
+            assertTrue(Arrays.equals(leaf(i * 2), backend.get(live.get(i))));
+        }
+        backend.close();
+    }
+
+    private static byte[] leaf(int i) {
+        byte[] content = new byte[40];
+        System.arraycopy(HashPrefix.leafNode.bytes, 0, content, 0, 4);
+        content[39] = (byte) i;
+        content[38] = (byte) (i >> 8);
+        return content;
+    }
+
+    private static byte[] inner(ArrayList<Hash256> children) {
+        byte[] content = new byte[4 + 16 * 32];
+        System.arraycopy(HashPrefix.innerNode.bytes, 0, content, 0, 4);
+        for (int i = 0; i < children.size(); i++) {
+            System.arraycopy(children.get(i).bytes(), 0, content, 4 + i * 32, 32);
+        }
+        return content;
+    }
+}
@@ -0,0 +1,169 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.config.Config;
+import com.weibei.core.coretypes.hash.Hash256;
+import com.weibei.core.serialized.BytesList;
+import com.weibei.core.types.known.sle.LedgerEntry;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import static com.weibei.core.TestFixtures.accountRoots;
+import static com.weibei.core.TestFixtures.randomKey;
+import static junit.framework.TestCase.*;
+
+public class NodeLoaderTest {
+    static {
+        Config.initBouncy();
+    }
+
+    @Test
+    public void testLookupsFaultNodesIn() {
+        ArrayList<LedgerEntry> entries = accountRoots(3000);
+        AccountState resident = buildState(entries);
+        NodeStore store = storeAll(resident);
+
+        AccountState lazy = AccountState.loadFromNodeStore(store, resident.hash(), 0);
+        assertEquals(resident.hash(), lazy.hash());
+        for (LedgerEntry le : entries) {
+            assertEquals(le.prettyJSON(), lazy.getLE(le.index()).prettyJSON());
+        }
+        assertFalse(lazy.hasLeaf(randomKey(new Random(1))));
+        assertEquals(resident.hash(), lazy.hash());
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        ArrayList<LedgerEntry> entries = accountRoots(3000);
+        AccountState resident = buildState(entries);
+        NodeStore store = storeAll(resident);
+
+        NodeLoader loader = new NodeLoader(store, NodeLoader.MIN_CACHED_NODES);
+        AccountState lazy = new AccountState();
+        loader.attach(lazy, resident.hash());
+
+        final int[] leaves = new int[]{0};
+        lazy.walkLeaves(new LeafWalker() {
+            @Override
+            public void onLeaf(ShaMapLeaf leaf) {
+                leaves[0]++;
+            }
+        });
+        assertEquals(3000, leaves[0]);
+        assertTrue(loader.cached() <= NodeLoader.MIN_CACHED_NODES);
+        long loads = loader.loads();
+
+        // Everything has to come back from the store again
+        for (LedgerEntry le : entries) {
+            assertNotNull(lazy.getLE(le.index()));
+        }
+        assertTrue(loader.loads() > loads);
+        assertTrue(loader.cached() <= NodeLoader.MIN_CACHED_NODES);
+    }
+
+    @Test
+    public void testModificationsSurviveEviction() {
+        ArrayList<LedgerEntry> entries = accountRoots(3000);
+        AccountState resident = buildState(entries);
+        NodeStore store = storeAll(resident);
+        Hash256 original = resident.hash();
+
+        AccountState lazy = AccountState.loadFromNodeStore(store, original, 0);
+        AccountState snapshot = lazy.copy();
+        for (int i = 0; i < 500; i++) {
+            Hash256 index = entries.get(i).index();
+            resident.removeLeaf(index);
+            lazy.removeLeaf(index);
+        }
+        // Cycle everything else through the cache
+        for (LedgerEntry le : entries.subList(500, entries.size())) {
+            assertNotNull(lazy.getLE(le.index()));
+        }
+        for (int i = 0; i < 500; i++) {
+            assertFalse(lazy.hasLeaf(entries.get(i).index()));
+        }
+        assertEquals(resident.hash(), lazy.hash());
+        assertEquals(original, snapshot.hash());
+        assertNotNull(snapshot.getLE(entries.get(0).index()));
+    }
+
+    @Test
+    public void testNodeCacheSharesSubtreesBetweenLoads() {
+        ArrayList<LedgerEntry> entries = accountRoots(3000);
+        AccountState first = buildState(entries);
+        NodeStore store = storeAll(first);
+        AccountState second = first.copy();
+        second.removeLeaf(entries.get(0).index());
+        storeAll(second, store);
+
+        ShaMapNodeCache nodeCache = new ShaMapNodeCache();
+        NodeLoader one = new NodeLoader(store, 100000, nodeCache);
+        NodeLoader two = new NodeLoader(store, 100000, nodeCache);
+        AccountState lazyOne = new AccountState();
+        AccountState lazyTwo = new AccountState();
+        one.attach(lazyOne, first.hash());
+        two.attach(lazyTwo, second.hash());
+
+        for (LedgerEntry le : entries) {
+            assertNotNull(lazyOne.getLE(le.index()));
+        }
+        for (LedgerEntry le : entries.subList(1, entries.size())) {
+            assertTrue(lazyTwo.getLeaf(le.index()) == lazyOne.getLeaf(le.index()));
+        }
+        // Only the changed path came from the store
+        assertTrue(two.loads() < 10);
+
+        // Changing one leaves the other alone
+        lazyTwo.removeLeaf(entries.get(1).index());
+        assertNotNull(lazyOne.getLE(entries.get(1).index()));
+        assertEquals(first.hash(), lazyOne.hash());
+    }
+
+    private static NodeStore storeAll(ShaMap map) {
+        final HashMap<Hash256, byte[]> db = new HashMap<Hash256, byte[]>();
+        NodeStore store = new NodeStore(new NodeStore.KeyValueBackend() {
+            @Override
+            public void put(Hash256 key, byte[] content) {
+                db.put(key, content);
+            }
+
+            @Override
+            public byte[] get(Hash256 key) {
+                return db.get(key);
+            }
+        });
+        return storeAll(map, store);
+    }
+
+    private static NodeStore storeAll(ShaMap map, final NodeStore store) {
+        map.walkHashedTree(new HashedTreeWalker() {
+            @Override
+            public void onLeaf(Hash256 h, ShaMapLeaf le) {
+                assertEquals(h, store.set(nodeBytes(le)));
+            }
+
+            @Override
+            public void onInner(Hash256 h, ShaMapInner inner) {
+                assertEquals(h, store.set(nodeBytes(inner)));
+            }
+        });
+        return store;
+    }
+
+    private static byte[] nodeBytes(ShaMapNode node) {
+        BytesList list = new BytesList();
+        list.add(node.hashPrefix().bytes());
+        node.toBytesSink(list);
+        return list.bytes();
+    }
+
+    private static AccountState buildState(ArrayList<LedgerEntry> entries) {
+        AccountState state = new AccountState();
+        for (LedgerEntry le : entries) {
+            state.addLE(le);
+        }
+        return state;
+    }
+}
@@ -0,0 +1,81 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.config.Config;
+import com.weibei.core.coretypes.hash.Hash256;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.weibei.core.TestFixtures.randomKeys;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertSame;
+
+public class ParallelHasherTest {
+    static {
+        Config.initBouncy();
+    }
+
+    ForkJoinPool pool = new ForkJoinPool(4);
+
+    @Test
+    public void testSameRootHashAsSequential() {
+        ArrayList<Hash256> keys = randomKeys(5000);
+        ShaMap sequential = buildShaMap(keys);
+        ShaMap parallel = buildShaMap(keys);
+
+        Hash256 expected = sequential.hash();
+        assertEquals(expected, new ParallelHasher(pool).hash(parallel));
+        // and with forking all the way down
+        ShaMap deep = buildShaMap(keys);
+        assertEquals(expected, new ParallelHasher(pool, 64, 1).hash(deep));
+    }
+
+    @Test
+    public void testOnlyRehashesDirtyBranches() {
+        ArrayList<Hash256> keys = randomKeys(2000);
+        ShaMap sequential = buildShaMap(keys);
+        ShaMap parallel = buildShaMap(keys);
+        ParallelHasher hasher = new ParallelHasher(pool);
+        sequential.hash();
+        hasher.hash(parallel);
+
+        // Dirty only the paths under the root's first branch, and take a
+        // copy first, to make sure copy on write inners get hashed too
+        ShaMap copy = parallel.copy();
+        int removed = 0;
+        for (Hash256 key : keys) {
+            if (key.nibblet(0) == 0 && removed++ < 100) {
+                sequential.removeLeaf(key);
+                parallel.removeLeaf(key);
+            }
+        }
+        Hash256[] before = new Hash256[16];
+        for (int i = 0; i < 16; i++) {
+            before[i] = parallel.getBranch(i).hash;
+        }
+        assertNull(before[0]);
+
+        assertEquals(sequential.hash(), hasher.hash(parallel));
+        // The untouched branches kept their cached hashes, rather than
+        // being hashed again
+        for (int i = 1; i < 16; i++) {
+            assertSame(before[i], parallel.getBranch(i).hash);
+        }
+        assertEquals(hasher.hash(copy), buildShaMap(keys).hash());
+    }
+
+    @Test
+    public void testEmptyMap() {
+        assertEquals(Hash256.ZERO_256, new ParallelHasher(pool).hash(new ShaMap()));
+    }
+
+    private ShaMap buildShaMap(ArrayList<Hash256> keys) {
+        ShaMap sm = new ShaMap();
+        for (Hash256 key : keys) {
+            sm.addItem(key, new Hash256Item(key));
+        }
+        return sm;
+    }
+}
@@ -0,0 +1,178 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.config.Config;
+import com.weibei.core.binary.STReader;
+import com.weibei.core.coretypes.STObject;
+import com.weibei.core.coretypes.hash.Hash256;
+import com.weibei.core.serialized.BinaryParser;
+import com.weibei.core.serialized.BinarySerializer;
+import com.weibei.core.serialized.BytesList;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+
+import static com.weibei.core.TestFixtures.accountRoot;
+import static com.weibei.core.TestFixtures.randomKey;
+import static junit.framework.TestCase.*;
+
+public class ReplayPipelineTest {
+    static {
+        Config.initBouncy();
+    }
+
+    static final String ACCOUNT = "rHb9CJAWyB4rj91VRWn96DkukG4bwdtyTh";
+
+    @Test
+    public void testReplayMatchesSequentialBuild() {
+        Random random = new Random(18);
+        ArrayList<Hash256> accounts = new ArrayList<Hash256>();
+        for (int i = 0; i < 200; i++) {
+            accounts.add(randomKey(random));
+        }
+        // The records for ledgers 11..30, with the account hashes a plain
+        // sequential build ends up with
+        AccountStateBuilder sequential = new AccountStateBuilder(genesis(accounts), 10);
+        ArrayList<ReplayPipeline.Record> records = new ArrayList<ReplayPipeline.Record>();
+        int sequence = 1;
+        for (long ledger = 11; ledger <= 30; ledger++) {
+            for (int i = 0; i < 25; i++) {
+                ReplayPipeline.Record record = transaction(random, ledger, i,
+                        accounts.get(random.nextInt(accounts.size())), sequence++);
+                records.add(record);
+                sequential.onTransaction(record.parse());
+            }
+            Hash256 parentHash = randomKey(random);
+            sequential.onLedgerClose(ledger, null, parentHash);
+            records.add(ReplayPipeline.Record.ledgerClose(ledger, sequential.state().hash(), parentHash));
+        }
+
+        AccountStateBuilder builder = new AccountStateBuilder(genesis(accounts), 10);
+        ReplayPipeline pipeline = new ReplayPipeline(builder, 3, 16, 2);
+        ReplayPipeline.Stats stats = pipeline.replay(records.iterator());
+        assertEquals(20, stats.ledgers);
+        assertEquals(500, stats.transactions);
+        assertEquals(500, builder.totalTransactions);
+        assertEquals(sequential.state().hash(), builder.state().hash());
+        assertEquals(sequential.modifiedEntries, builder.modifiedEntries);
+        assertEquals(20, stats.toJSON().getInt("ledgers"));
+    }
+
+    @Test
+    public void testMismatchedHashIsReported() {
+        Random random = new Random(19);
+        ArrayList<Hash256> accounts = new ArrayList<Hash256>();
+        for (int i = 0; i < 20; i++) {
+            accounts.add(randomKey(random));
+        }
+        ArrayList<ReplayPipeline.Record> records = new ArrayList<ReplayPipeline.Record>();
+        records.add(transaction(random, 11, 0, accounts.get(0), 1));
+        records.add(ReplayPipeline.Record.ledgerClose(11, randomKey(random), randomKey(random)));
+
+        ReplayPipeline pipeline = new ReplayPipeline(new AccountStateBuilder(genesis(accounts), 10));
+        try {
+            pipeline.replay(records.iterator());
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().startsWith("ledger 11 state hashed to"));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testErrorReadingIsReported() {
+        Random random = new Random(21);
+        ArrayList<Hash256> accounts = new ArrayList<Hash256>();
+        accounts.add(randomKey(random));
+        final ReplayPipeline.Record record = transaction(random, 11, 0, accounts.get(0), 1);
+        Iterator<ReplayPipeline.Record> records = new Iterator<ReplayPipeline.Record>() {
+            int read = 0;
+
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public ReplayPipeline.Record next() {
+                if (read++ == 1) {
+                    throw new AssertionError("corrupt");
+                }
+                return record;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        ReplayPipeline pipeline = new ReplayPipeline(new AccountStateBuilder(genesis(accounts), 10));
+        try {
+            pipeline.replay(records);
+            fail();
+        } catch (AssertionError e) {
+            assertEquals("corrupt", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testReadTransaction() {
+        Random random = new Random(20);
+        ReplayPipeline.Record record = transaction(random, 11, 0, randomKey(random), 1);
+        BytesList bytes = new BytesList();
+        bytes.add(record.hash);
+        BinarySerializer serializer = new BinarySerializer(bytes);
+        serializer.addLengthEncoded(record.txn);
+        serializer.addLengthEncoded(record.meta);
+
+        STReader reader = new STReader(new BinaryParser(bytes.bytesHex()));
+        ReplayPipeline.Record read = ReplayPipeline.Record.readTransaction(reader, 11);
+        assertTrue(reader.end());
+        assertEquals(record.parse().toJSON().toString(), read.parse().toJSON().toString());
+    }
+
+    static AccountState genesis(ArrayList<Hash256> accounts) {
+        AccountState state = new AccountState();
+        for (Hash256 index : accounts) {
+            state.addLE(accountRoot(index, 0));
+        }
+        return state;
+    }
+
+    static ReplayPipeline.Record transaction(Random random, long ledger, int txIndex,
+                                        Hash256 account, int sequence) {
+        JSONObject tx = new JSONObject();
+        tx.put("TransactionType", "AccountSet");
+        tx.put("Account", ACCOUNT);
+        tx.put("Fee", "10");
+        tx.put("Flags", 0);
+        tx.put("Sequence", sequence);
+
+        JSONObject modified = new JSONObject();
+        modified.put("LedgerEntryType", "AccountRoot");
+        modified.put("LedgerIndex", account.toHex());
+        JSONObject fields = accountRootFields(sequence);
+        modified.put("FinalFields", fields);
+        JSONObject meta = new JSONObject();
+        meta.put("TransactionIndex", txIndex);
+        meta.put("TransactionResult", "tesSUCCESS");
+        meta.put("AffectedNodes", new JSONArray().put(new JSONObject().put("ModifiedNode", modified)));
+
+        return ReplayPipeline.Record.transaction(ledger, randomKey(random).bytes(),
+                STObject.fromJSONObject(tx).toBytes(),
+                STObject.fromJSONObject(meta).toBytes());
+    }
+
+    private static JSONObject accountRootFields(int sequence) {
+        JSONObject json = new JSONObject();
+        json.put("Account", ACCOUNT);
+        json.put("Balance", String.valueOf(1000000 - sequence));
+        json.put("Flags", 0);
+        json.put("OwnerCount", 0);
+        json.put("Sequence", sequence);
+        return json;
+    }
+}
@@ -0,0 +1,129 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.config.Config;
+import com.weibei.core.coretypes.hash.Hash256;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static com.weibei.core.TestFixtures.randomKeys;
+import static com.weibei.core.types.shamap.TestHelpers.H256;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertSame;
+import static junit.framework.TestCase.assertTrue;
+
+public class ShaMapBatchTest {
+    static {
+        Config.initBouncy();
+    }
+
+    @Test
+    public void testSameAsOneAtATime() {
+        Random random = new Random(6);
+        ArrayList<Hash256> keys = randomKeys(3000, random);
+        ShaMap sequential = build(keys.subList(0, 2000));
+        ShaMap batched = build(keys.subList(0, 2000));
+
+        ShaMapBatch batch = new ShaMapBatch();
+        int expected = 0;
+        for (int i = 0; i < 1000; i++) {
+            Hash256 existing = keys.get(i);
+            Hash256 fresh = keys.get(2000 + i);
+            Hash256Item item = new Hash256Item(randomKeys(1, random).get(0));
+
+            switch (random.nextInt(4)) {
+                case 0:
+                    batch.add(fresh, new Hash256Item(fresh));
+                    if (sequential.addItem(fresh, new Hash256Item(fresh))) expected++;
+                    break;
+                case 1:
+                    batch.update(existing, item);
+                    if (sequential.updateItem(existing, item)) expected++;
+                    break;
+                case 2:
+                    batch.remove(existing);
+                    if (sequential.removeLeaf(existing)) expected++;
+                    break;
+                default:
+                    // Nothing to update
+                    batch.update(fresh, item);
+                    if (sequential.updateItem(fresh, item)) expected++;
+                    break;
+            }
+        }
+        ShaMap snapshot = batched.copy();
+        Hash256 before = snapshot.hash();
+
+        assertEquals(expected, batched.apply(batch));
+        assertTrue(expected < 1000);
+        assertEquals(sequential.hash(), batched.hash());
+        assertEquals(before, snapshot.hash());
+    }
+
+    @Test
+    public void testRemovingCollapsesInners() {
+        ShaMap sm = new ShaMap();
+        sm.addItem(H256("01"), new Hash256Item(H256("01")));
+        Hash256 justOne = sm.hash();
+
+        ShaMapBatch batch = new ShaMapBatch();
+        batch.add(H256("011"), new Hash256Item(H256("011")))
+             .add(H256("0111"), new Hash256Item(H256("0111")))
+             .add(H256("02"), new Hash256Item(H256("02")));
+        assertEquals(3, sm.apply(batch));
+        assertTrue(sm.branch(0).isInner());
+
+        batch.clear();
+        batch.remove(H256("011"))
+             .remove(H256("0111"))
+             .remove(H256("02"))
+             .update(H256("03"), new Hash256Item(H256("03")));
+        assertEquals(3, sm.apply(batch));
+        assertTrue(sm.branch(0).isLeaf());
+        assertEquals(justOne, sm.hash());
+
+        batch.clear();
+        batch.remove(H256("01")).add(H256("01"), new Hash256Item(H256("01")));
+        // The add replaced the remove, and there's already a leaf there
+        assertEquals(0, sm.apply(batch));
+    }
+
+    @Test
+    public void testNoOpsTouchNothing() {
+        ShaMap sm = new ShaMap();
+        Hash256Item item = new Hash256Item(H256("02"));
+        sm.addItem(H256("01"), new Hash256Item(H256("01")));
+        sm.addItem(H256("02"), item);
+        sm.addItem(H256("1"), new Hash256Item(H256("1")));
+        ShaMap snapshot = sm.copy();
+        Hash256 hash = sm.hash();
+        ShaMapNode inner = sm.branch(0);
+        ShaMapCounters counters = new ShaMapCounters();
+        sm.setListener(counters);
+
+        ShaMapBatch batch = new ShaMapBatch();
+        batch.remove(H256("03"))
+             // under a leaf, which mustn't be pushed down
+             .remove(H256("11"))
+             .add(H256("01"), new Hash256Item(H256("01")))
+             .update(H256("02"), item);
+        assertEquals(0, sm.apply(batch));
+
+        assertEquals(0, counters.invalidations);
+        assertEquals(0, counters.innersCopied);
+        assertEquals(0, counters.splits);
+        assertEquals(0, counters.collapses);
+        assertSame(inner, sm.branch(0));
+        assertSame(hash, sm.hash());
+        assertSame(inner, snapshot.branch(0));
+    }
+
+    private ShaMap build(Iterable<Hash256> keys) {
+        ShaMap sm = new ShaMap();
+        for (Hash256 key : keys) {
+            sm.addItem(key, new Hash256Item(key));
+        }
+        return sm;
+    }
+}
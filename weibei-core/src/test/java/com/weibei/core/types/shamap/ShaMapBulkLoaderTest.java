@@ -0,0 +1,83 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.config.Config;
+import com.weibei.core.coretypes.hash.Hash256;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import static com.weibei.core.TestFixtures.randomKey;
+import static com.weibei.core.types.shamap.TestHelpers.H256;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
+
+public class ShaMapBulkLoaderTest {
+    static {
+        Config.initBouncy();
+    }
+
+    @Test
+    public void testSameHashAsInserting() {
+        Random random = new Random(8);
+        ArrayList<Hash256> keys = new ArrayList<Hash256>();
+        for (int i = 0; i < 5000; i++) {
+            keys.add(randomKey(random));
+        }
+        // Some that go all the way down
+        keys.add(H256("abcdef0123456789abcdef0123456789abcdef0123456789abcdef012345678"));
+        keys.add(H256("abcdef0123456789abcdef0123456789abcdef0123456789abcdef0123456789"));
+        keys.add(H256("abcdef0123456789abcdef0123456789abcdef0123456789abcdef012345678a"));
+        Collections.sort(keys);
+
+        ShaMap inserted = new ShaMap();
+        for (Hash256 key : keys) {
+            inserted.addItem(key, new Hash256Item(key));
+        }
+        for (boolean hashAsBuilt : new boolean[]{true, false}) {
+            ShaMapBulkLoader loader = new ShaMapBulkLoader(new ShaMap(), hashAsBuilt);
+            for (Hash256 key : keys) {
+                loader.addItem(key, new Hash256Item(key));
+            }
+            ShaMap loaded = (ShaMap) loader.finish();
+            if (hashAsBuilt) {
+                assertTrue(loaded.hash != null);
+            }
+            assertEquals(inserted.hash(), loaded.hash());
+
+            // and it's a perfectly normal map afterwards
+            loaded.removeLeaf(keys.get(keys.size() - 2));
+            inserted.removeLeaf(keys.get(keys.size() - 2));
+            assertEquals(inserted.hash(), loaded.hash());
+            inserted.addItem(keys.get(keys.size() - 2), new Hash256Item(keys.get(keys.size() - 2)));
+        }
+    }
+
+    @Test
+    public void testSmallMaps() {
+        ShaMapBulkLoader loader = new ShaMapBulkLoader(new ShaMap(), true);
+        assertEquals(Hash256.ZERO_256, loader.finish().hash());
+
+        ShaMap one = new ShaMap();
+        one.addItem(H256("1"), new Hash256Item(H256("1")));
+        loader = new ShaMapBulkLoader(new ShaMap(), true);
+        loader.addItem(H256("1"), new Hash256Item(H256("1")));
+        assertEquals(one.hash(), loader.finish().hash());
+    }
+
+    @Test
+    public void testRejectsUnorderedLeaves() {
+        ShaMapBulkLoader loader = new ShaMapBulkLoader(new ShaMap(), false);
+        loader.addItem(H256("2"), new Hash256Item(H256("2")));
+        assertFalse(loader.accepts(H256("1")));
+        assertFalse(loader.accepts(H256("2")));
+        try {
+            loader.addItem(H256("1"), new Hash256Item(H256("1")));
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.config.Config;
+import org.junit.Test;
+
+import static com.weibei.core.types.shamap.TestHelpers.H256;
+import static com.weibei.core.types.shamap.TestHelpers.Leaf;
+import static junit.framework.TestCase.assertEquals;
+
+public class ShaMapCountersTest {
+    static {
+        Config.initBouncy();
+    }
+
+    @Test
+    public void testCounts() {
+        ShaMap sm = new ShaMap();
+        ShaMapCounters counters = new ShaMapCounters();
+        sm.setListener(counters);
+
+        sm.addLeaf(Leaf("1"));
+        sm.addLeaf(Leaf("2"));
+        // two splits, as they share 2 nibbles
+        sm.addLeaf(Leaf("201"));
+        assertEquals(2, counters.splits);
+
+        sm.hash();
+        // root, 2, 20 and the three leaves
+        assertEquals(3, counters.innersHashed);
+        assertEquals(3, counters.leavesHashed);
+        assertEquals(1, counters.innersHashedByDepth[2]);
+        sm.hash();
+        assertEquals(3, counters.innersHashed);
+
+        ShaMap copy = sm.copy();
+        counters.reset();
+        sm.getLeafForUpdating(H256("201"));
+        assertEquals(2, counters.innersCopied);
+        assertEquals(1, counters.leavesCopied);
+        // the root, and the two copies
+        assertEquals(3, counters.invalidations);
+
+        sm.removeLeaf(H256("201"));
+        // 20 then 2 collapse into the leaf
+        assertEquals(2, counters.collapses);
+
+        ShaMapStats stats = ShaMapStats.collect(sm);
+        assertEquals(1, stats.inners);
+        assertEquals(2, stats.leaves);
+        assertEquals(2, stats.leavesByDepth[1]);
+        assertEquals(1, stats.innersByFanOut[2]);
+    }
+}
@@ -0,0 +1,166 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.config.Config;
+import com.weibei.core.coretypes.hash.Hash256;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import static com.weibei.core.TestFixtures.randomKeys;
+import static com.weibei.core.types.shamap.TestHelpers.H256;
+import static junit.framework.TestCase.*;
+
+public class ShaMapCursorTest {
+    static {
+        Config.initBouncy();
+    }
+
+    @Test
+    public void testForwardsAndBackwards() {
+        ArrayList<Hash256> keys = randomKeys(3000);
+        ShaMap sm = build(keys);
+        Collections.sort(keys);
+
+        ShaMapCursor cursor = sm.cursor();
+        ArrayList<Hash256> forwards = new ArrayList<Hash256>();
+        for (boolean ok = cursor.seekFirst(); ok; ok = cursor.next()) {
+            forwards.add(cursor.index());
+        }
+        assertEquals(keys, forwards);
+
+        ArrayList<Hash256> backwards = new ArrayList<Hash256>();
+        for (boolean ok = cursor.seekLast(); ok; ok = cursor.previous()) {
+            backwards.add(cursor.index());
+        }
+        Collections.reverse(backwards);
+        assertEquals(keys, backwards);
+    }
+
+    @Test
+    public void testSeekAndBounds() {
+        Random random = new Random(11);
+        ArrayList<Hash256> keys = randomKeys(3000);
+        ShaMap sm = build(keys);
+        Collections.sort(keys);
+
+        for (int i = 0; i < 200; i++) {
+            Hash256 target = random.nextBoolean() ? keys.get(random.nextInt(keys.size())) :
+                                                    randomKeys(1, random).get(0);
+            int ceiling = Collections.binarySearch(keys, target);
+            int floor;
+            if (ceiling < 0) {
+                ceiling = -ceiling - 1;
+                floor = ceiling - 1;
+            } else {
+                floor = ceiling;
+            }
+
+            ShaMapCursor cursor = sm.cursor();
+            assertEquals(ceiling < keys.size(), cursor.seek(target));
+            if (ceiling < keys.size()) {
+                assertEquals(keys.get(ceiling), cursor.index());
+            }
+            assertEquals(floor >= 0, cursor.seekFloor(target));
+            if (floor >= 0) {
+                assertEquals(keys.get(floor), cursor.index());
+            }
+
+            // Everything from target up to a few keys later
+            int end = Math.min(keys.size() - 1, ceiling + random.nextInt(5));
+            cursor.setUpperBound(keys.get(end)).setLowerBound(target);
+            int n = 0;
+            for (boolean ok = cursor.seek(target); ok; ok = cursor.next()) {
+                assertEquals(keys.get(ceiling + n++), cursor.index());
+            }
+            assertEquals(Math.max(0, end - ceiling), n);
+            if (floor >= 0 && floor != ceiling) {
+                assertFalse(cursor.seekFloor(target));
+            }
+        }
+    }
+
+    @Test
+    public void testSeeksClampToBounds() {
+        Random random = new Random(12);
+        ArrayList<Hash256> keys = randomKeys(2000);
+        ShaMap sm = build(keys);
+        Collections.sort(keys);
+
+        for (int i = 0; i < 200; i++) {
+            Hash256 lower = random.nextInt(4) == 0 ? null : someKey(keys, random);
+            Hash256 upper = random.nextInt(4) == 0 ? null : someKey(keys, random);
+            ArrayList<Hash256> inRange = new ArrayList<Hash256>();
+            for (Hash256 key : keys) {
+                if ((lower == null || key.compareTo(lower) >= 0) &&
+                    (upper == null || key.compareTo(upper) < 0)) {
+                    inRange.add(key);
+                }
+            }
+            ShaMapCursor cursor = sm.cursor().setLowerBound(lower).setUpperBound(upper);
+
+            ArrayList<Hash256> forwards = new ArrayList<Hash256>();
+            for (boolean ok = cursor.seekFirst(); ok; ok = cursor.next()) {
+                forwards.add(cursor.index());
+            }
+            assertEquals(inRange, forwards);
+
+            ArrayList<Hash256> backwards = new ArrayList<Hash256>();
+            for (boolean ok = cursor.seekLast(); ok; ok = cursor.previous()) {
+                backwards.add(cursor.index());
+            }
+            Collections.reverse(backwards);
+            assertEquals(inRange, backwards);
+
+            Hash256 target = someKey(keys, random);
+            Hash256 ceiling = null, floor = null;
+            for (Hash256 key : inRange) {
+                if (ceiling == null && key.compareTo(target) >= 0) {
+                    ceiling = key;
+                }
+                if (key.compareTo(target) <= 0) {
+                    floor = key;
+                }
+            }
+            assertEquals(ceiling != null, cursor.seek(target));
+            assertEquals(ceiling, cursor.index());
+            assertEquals(floor != null, cursor.seekFloor(target));
+            assertEquals(floor, cursor.index());
+            if (floor != null) {
+                // Stepping back stops at the lower bound
+                while (cursor.previous()) {
+                    assertTrue(lower == null || cursor.index().compareTo(lower) >= 0);
+                }
+                assertFalse(cursor.valid());
+            }
+        }
+    }
+
+    @Test
+    public void testGetNextIndex() {
+        AccountState state = new AccountState();
+        state.addItem(H256("10"), new Hash256Item(H256("10")));
+        state.addItem(H256("11"), new Hash256Item(H256("11")));
+        state.addItem(H256("2"), new Hash256Item(H256("2")));
+
+        assertEquals(H256("11"), state.getNextIndex(H256("10"), H256("3")));
+        assertEquals(H256("2"), state.getNextIndex(H256("11"), H256("3")));
+        assertNull(state.getNextIndex(H256("11"), H256("2")));
+        assertEquals(H256("10"), state.getNextIndex(H256("0"), H256("3")));
+        assertNull(new AccountState().getNextIndex(H256("0"), H256("3")));
+    }
+
+    private ShaMap build(ArrayList<Hash256> keys) {
+        ShaMap sm = new ShaMap();
+        for (Hash256 key : keys) {
+            sm.addItem(key, new Hash256Item(key));
+        }
+        return sm;
+    }
+
+    private Hash256 someKey(ArrayList<Hash256> keys, Random random) {
+        return random.nextBoolean() ? keys.get(random.nextInt(keys.size())) :
+                                      randomKeys(1, random).get(0);
+    }
+}
@@ -7,6 +7,11 @@ import com.weibei.core.serialized.BytesSink;
 import org.junit.Test;
 
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static junit.framework.TestCase.assertEquals;
 
@@ -116,6 +121,67 @@ public class ShaMapDiffTest {
         testComparison(three);
     }
 
+    @Test
+    public void testParallelDiffStreamsInOrder() throws Exception {
+        Random random = new Random(7);
+        ShaMap a = new ShaMap();
+        ArrayList<Hash256> keys = new ArrayList<Hash256>();
+        for (int i = 0; i < 20000; i++) {
+            Hash256 key = randomHash(random);
+            keys.add(key);
+            a.addItem(key, new Hash256Item(key));
+        }
+        ShaMap b = a.copy();
+        for (int i = 0; i < 3000; i++) {
+            b.removeLeaf(keys.get(i));
+            b.updateItem(keys.get(3000 + i), new Hash256Item(randomHash(random)));
+            Hash256 added = randomHash(random);
+            b.addItem(added, new Hash256Item(added));
+        }
+
+        final ArrayList<String> sequential = new ArrayList<String>();
+        final ArrayList<String> parallel = new ArrayList<String>();
+        ShaMapDiff.diff(a, b, recorder(sequential));
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            ShaMapDiff.diff(a, b, recorder(parallel), executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(9000, sequential.size());
+        assertEquals(sequential, parallel);
+        ArrayList<String> sorted = new ArrayList<String>(sequential);
+        Collections.sort(sorted);
+        assertEquals(sorted, sequential);
+    }
+
+    private ShaMapDiffVisitor recorder(final ArrayList<String> diffs) {
+        return new ShaMapDiffVisitor() {
+            @Override
+            public void onAdded(ShaMapLeaf added) {
+                diffs.add(added.index.toHex() + " added");
+            }
+
+            @Override
+            public void onModified(ShaMapLeaf before, ShaMapLeaf after) {
+                assertEquals(before.index, after.index);
+                diffs.add(after.index.toHex() + " modified");
+            }
+
+            @Override
+            public void onDeleted(ShaMapLeaf deleted) {
+                diffs.add(deleted.index.toHex() + " deleted");
+            }
+        };
+    }
+
+    private Hash256 randomHash(Random random) {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return new Hash256(bytes);
+    }
+
     private void testComparison(Comparison cmp) {
         ShaMap sa = buildShaMap(cmp.A());
         ShaMap sb = buildShaMap(cmp.B());
@@ -0,0 +1,112 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.config.Config;
+import com.weibei.core.coretypes.hash.Hash256;
+import com.weibei.core.types.known.sle.LedgerEntry;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import static com.weibei.core.TestFixtures.accountRoot;
+import static com.weibei.core.TestFixtures.randomKey;
+import static junit.framework.TestCase.*;
+
+public class ShaMapFlusherTest {
+    static {
+        Config.initBouncy();
+    }
+
+    static class CountingBackend implements NodeStore.KeyValueBackend {
+        HashMap<Hash256, byte[]> db = new HashMap<Hash256, byte[]>();
+        int puts = 0;
+
+        @Override
+        public void put(Hash256 key, byte[] content) {
+            puts++;
+            db.put(key, content);
+        }
+
+        @Override
+        public byte[] get(Hash256 key) {
+            return db.get(key);
+        }
+    }
+
+    @Test
+    public void testOnlyChangesAreWritten() {
+        Random random = new Random(9);
+        ArrayList<LedgerEntry> entries = new ArrayList<LedgerEntry>();
+        AccountState state = new AccountState();
+        for (int i = 0; i < 2000; i++) {
+            LedgerEntry le = accountRoot(randomKey(random), i);
+            entries.add(le);
+            state.addLE(le);
+        }
+        CountingBackend backend = new CountingBackend();
+        NodeStore store = new NodeStore(backend);
+
+        ShaMapFlusher.Result full = state.flush(backend);
+        assertEquals(state.hash(), full.rootHash);
+        assertEquals(2000, full.leaves);
+        assertEquals(full.inners + full.leaves, backend.puts);
+        AccountState snapshot = state.copy();
+
+        // Nothing changed but the root is written again
+        backend.puts = 0;
+        ShaMapFlusher.Result none = state.flush(backend);
+        assertEquals(full.rootHash, none.rootHash);
+        assertEquals(1, none.inners);
+        assertEquals(0, none.leaves);
+
+        backend.puts = 0;
+        for (int i = 0; i < 5; i++) {
+            state.addLE(accountRoot(randomKey(random), i));
+        }
+        state.removeLeaf(entries.get(0).index());
+        state.updateLE(accountRoot(entries.get(1).index(), 7));
+        ShaMapFlusher.Result delta = state.flush(backend);
+        assertEquals(6, delta.leaves);
+        assertTrue(delta.inners < 40);
+        assertEquals(delta.inners + delta.leaves, backend.puts);
+
+        // Both versions can be loaded back
+        assertEquals(state.hash(), AccountState.loadFromNodeStore(store, delta.rootHash, 0).hash());
+        AccountState old = AccountState.loadFromNodeStore(store, full.rootHash, 0);
+        assertEquals(snapshot.hash(), old.hash());
+        assertEquals(entries.get(0).prettyJSON(), old.getLE(entries.get(0).index()).prettyJSON());
+
+        // A copy carries on from where the original was flushed
+        AccountState copy = state.copy();
+        copy.removeLeaf(entries.get(2).index());
+        backend.puts = 0;
+        assertEquals(0, copy.flush(backend).leaves);
+        assertTrue(backend.puts < 10);
+    }
+
+    @Test
+    public void testLoadedNodesAreNotWrittenAgain() {
+        Random random = new Random(10);
+        ArrayList<LedgerEntry> entries = new ArrayList<LedgerEntry>();
+        AccountState state = new AccountState();
+        for (int i = 0; i < 2000; i++) {
+            LedgerEntry le = accountRoot(randomKey(random), i);
+            entries.add(le);
+            state.addLE(le);
+        }
+        CountingBackend backend = new CountingBackend();
+        state.flush(backend);
+
+        AccountState lazy = AccountState.loadFromNodeStore(new NodeStore(backend), state.hash(), 0);
+        for (LedgerEntry le : entries) {
+            assertNotNull(lazy.getLE(le.index()));
+        }
+        lazy.addLE(accountRoot(randomKey(random), 1));
+        backend.puts = 0;
+        ShaMapFlusher.Result delta = lazy.flush(backend);
+        assertEquals(1, delta.leaves);
+        assertEquals(delta.inners + 1, backend.puts);
+        assertTrue(delta.inners < 10);
+    }
+}
@@ -0,0 +1,81 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.config.Config;
+import com.weibei.core.coretypes.hash.Hash256;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static com.weibei.core.TestFixtures.randomKeys;
+import static junit.framework.TestCase.*;
+
+public class ShaMapNodeCacheTest {
+    static {
+        Config.initBouncy();
+    }
+
+    @Test
+    public void testSeparatelyBuiltMapsShareNodes() {
+        ArrayList<Hash256> keys = randomKeys(2000, new Random(7));
+        ShaMap one = build(keys);
+        ShaMap two = build(keys);
+        Hash256 hash = one.hash();
+
+        ShaMapNodeCache nodeCache = new ShaMapNodeCache();
+        nodeCache.internTree(one);
+        nodeCache.internTree(two);
+        assertEquals(hash, one.hash());
+        assertEquals(hash, two.hash());
+        for (int i = 0; i < 16; i++) {
+            assertTrue(one.branch(i) == two.branch(i));
+        }
+        for (Hash256 key : keys) {
+            assertTrue(one.getLeaf(key) == two.getLeaf(key));
+        }
+
+        // Shared nodes are copied, not modified
+        two.removeLeaf(keys.get(0));
+        two.addLeaf(new ShaMapLeaf(keys.get(1), new Hash256Item(Hash256.ZERO_256)));
+        two.getLeafForUpdating(keys.get(2));
+        assertEquals(hash, one.hash());
+        one.invalidate();
+        assertEquals(hash, one.hash());
+        assertTrue(one.hasLeaf(keys.get(0)));
+    }
+
+    @Test
+    public void testDiffApplySharesWithTheTarget() {
+        Random random = new Random(8);
+        ArrayList<Hash256> keys = randomKeys(2000, random);
+        ShaMap one = build(keys);
+        ShaMap two = one.copy();
+        for (Hash256 key : randomKeys(20, random)) {
+            two.addItem(key, new Hash256Item(key));
+        }
+        for (int i = 0; i < 20; i++) {
+            two.removeLeaf(keys.get(i));
+        }
+
+        ShaMapNodeCache nodeCache = new ShaMapNodeCache();
+        nodeCache.internTree(two);
+        ShaMap target = build(keys);
+        nodeCache.internTree(target);
+
+        ShaMapDiff diff = new ShaMapDiff(one, two);
+        diff.find();
+        diff.apply(target, nodeCache);
+        assertEquals(two.hash(), target.hash());
+        for (int i = 0; i < 16; i++) {
+            assertTrue(two.branch(i) == target.branch(i));
+        }
+    }
+
+    private static ShaMap build(ArrayList<Hash256> keys) {
+        ShaMap sm = new ShaMap();
+        for (Hash256 key : keys) {
+            sm.addItem(key, new Hash256Item(key));
+        }
+        return sm;
+    }
+}
@@ -0,0 +1,173 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.config.Config;
+import com.weibei.core.coretypes.hash.HalfSha512;
+import com.weibei.core.coretypes.hash.Hash256;
+import com.weibei.core.coretypes.hash.prefixes.HashPrefix;
+import com.weibei.core.serialized.BinarySerializer;
+import com.weibei.core.serialized.BytesList;
+import com.weibei.core.types.known.sle.LedgerEntry;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static com.weibei.core.TestFixtures.accountRoots;
+import static com.weibei.core.TestFixtures.randomKey;
+import static junit.framework.TestCase.*;
+
+public class ShaMapProofTest {
+    static {
+        Config.initBouncy();
+    }
+
+    @Test
+    public void testSingleAndMultiProofs() {
+        ArrayList<LedgerEntry> entries = accountRoots(2000);
+        AccountState state = new AccountState();
+        for (LedgerEntry le : entries) {
+            state.addLE(le);
+        }
+        ShaMapProofVerifier verifier = new ShaMapProofVerifier(state.hash());
+
+        LedgerEntry one = entries.get(7);
+        ShaMapProof single = state.proof(one.index());
+        ShaMapProofVerifier.Verified verified = verifier.verify(single);
+        assertNotNull(verified);
+        assertTrue(verified.isPresent(one.index()));
+        assertEquals(one.prettyJSON(), verified.ledgerEntry(one.index()).prettyJSON());
+        // Some other leaf is only there as a hash
+        Hash256 other = entries.get(8).index();
+        assertFalse(verified.isPresent(other));
+        assertFalse(verified.isAbsent(other));
+
+        ArrayList<Hash256> indexes = new ArrayList<Hash256>();
+        for (int i = 0; i < 100; i++) {
+            indexes.add(entries.get(i).index());
+        }
+        Hash256 missing = randomKey(new Random(1));
+        indexes.add(missing);
+        ShaMapProof multi = state.proof(indexes);
+        verified = verifier.verify(ShaMapProof.fromHex(multi.toHex()));
+        assertNotNull(verified);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(entries.get(i).prettyJSON(),
+                         verified.ledgerEntry(entries.get(i).index()).prettyJSON());
+        }
+        assertTrue(verified.isAbsent(missing));
+        assertNull(verified.leaf(missing));
+
+        // Shared inners make it much smaller than separate proofs
+        int separate = 0;
+        for (Hash256 index : indexes) {
+            separate += state.proof(index).bytes().length;
+        }
+        assertTrue(multi.bytes().length < separate);
+    }
+
+    @Test
+    public void testTamperedProofsAreRejected() {
+        ArrayList<LedgerEntry> entries = accountRoots(500);
+        AccountState state = new AccountState();
+        for (LedgerEntry le : entries) {
+            state.addLE(le);
+        }
+        Hash256 index = entries.get(3).index();
+        byte[] bytes = state.proof(index).bytes();
+        ShaMapProofVerifier verifier = new ShaMapProofVerifier(state.hash());
+
+        for (int i = 0; i < bytes.length; i += 7) {
+            byte[] tampered = bytes.clone();
+            tampered[i] ^= 1;
+            assertNull(verifier.verify(new ShaMapProof(tampered)));
+        }
+        byte[] truncated = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        assertNull(verifier.verify(new ShaMapProof(truncated)));
+
+        state.removeLeaf(entries.get(4).index());
+        assertNull(verifier.verify(state.proof(index)));
+    }
+
+    @Test
+    public void testInnerPassedOffAsLeafIsRejected() {
+        // Find an inner whose last child hash could be a leaf index there,
+        // so the forgery gets past the placement check
+        for (int n = 2000; ; n++) {
+            ArrayList<LedgerEntry> entries = accountRoots(n);
+            AccountState state = new AccountState();
+            for (LedgerEntry le : entries) {
+                state.addLE(le);
+            }
+            for (int slot = 0; slot < 16; slot++) {
+                ShaMapInner inner = state.getBranch(slot).asInner();
+                if (inner.branchHash(15).nibblet(0) == slot) {
+                    assertForgeryRejected(state, entries, slot);
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void assertForgeryRejected(AccountState state,
+                                              ArrayList<LedgerEntry> entries,
+                                              int slot) {
+        ShaMapInner inner = state.getBranch(slot).asInner();
+        BytesList children = new BytesList();
+        for (int i = 0; i < 15; i++) {
+            children.add(inner.branchHash(i).bytes());
+        }
+        Hash256 lastChild = inner.branchHash(15);
+
+        // Hashed with the inner prefix, it really is the inner
+        HalfSha512 half = HalfSha512.prefixed256(HashPrefix.innerNode);
+        half.update(children.bytes());
+        half.update(lastChild);
+        assertEquals(inner.hash(), half.finish());
+
+        BytesList forged = new BytesList();
+        int header = 0;
+        for (int i = 0; i < 16; i++) {
+            header |= (i == slot ? ShaMapProof.LEAF : ShaMapProof.HASH) << (30 - i * 2);
+        }
+        forged.add(new byte[]{(byte) (header >>> 24), (byte) (header >>> 16),
+                              (byte) (header >>> 8), (byte) header});
+        for (int i = 0; i < 16; i++) {
+            if (i == slot) {
+                forged.add(BinarySerializer.encodeVL(children.bytesLength()));
+                forged.add(children);
+                forged.add(lastChild.bytes());
+            } else {
+                forged.add(state.branchHash(i).bytes());
+            }
+        }
+        assertNull(new ShaMapProofVerifier(state.hash()).verify(new ShaMapProof(forged.bytes())));
+
+        // An index that is there can't be shown absent
+        for (LedgerEntry le : entries) {
+            if (le.index().nibblet(0) == slot) {
+                ShaMapProofVerifier.Verified verified =
+                        new ShaMapProofVerifier(state.hash()).verify(state.proof(le.index()));
+                assertTrue(verified.isPresent(le.index()));
+                assertFalse(verified.isAbsent(le.index()));
+                return;
+            }
+        }
+        fail();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInnerPrefixIsNotALeafPrefix() {
+        new ShaMapProofVerifier(Hash256.ZERO_256, HashPrefix.innerNode);
+    }
+
+    @Test
+    public void testEmptyMap() {
+        AccountState state = new AccountState();
+        Hash256 index = randomKey(new Random(2));
+        ShaMapProofVerifier.Verified verified =
+                new ShaMapProofVerifier(Hash256.ZERO_256).verify(state.proof(index));
+        assertNotNull(verified);
+        assertTrue(verified.isAbsent(index));
+    }
+}
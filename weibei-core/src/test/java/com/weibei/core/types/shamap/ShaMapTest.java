@@ -139,6 +139,31 @@ public class ShaMapTest {
         assertEquals(copy1.hash(), Hash256.ZERO_256);
     }
 
+    @Test
+    public void testDenseChildrenInAnyOrder() {
+        String[] indexes = {"f", "0", "8", "81", "3", "82", "e", "1"};
+        ShaMap forwards = new ShaMap();
+        ShaMap backwards = new ShaMap();
+        for (int i = 0; i < indexes.length; i++) {
+            forwards.addLeaf(Leaf(indexes[i]));
+            backwards.addLeaf(Leaf(indexes[indexes.length - 1 - i]));
+        }
+        assertEquals(forwards.hash(), backwards.hash());
+        assertEquals(6, forwards.children.length);
+        assertTrue(forwards.branch(8).isInner());
+        assertTrue(forwards.hasNone(2));
+        assertTrue(forwards.branch(2) == null);
+        assertTrue(forwards.getLeaf(H256("e")) != null);
+
+        ShaMap copy = forwards.copy();
+        for (String index : indexes) {
+            forwards.removeLeaf(H256(index));
+        }
+        assertEquals(0, forwards.children.length);
+        assertEquals(Hash256.ZERO_256, forwards.hash());
+        assertEquals(backwards.hash(), copy.hash());
+    }
+
     @Test
     public void testCopyOnWriteSemanticsUsing_getLeafForUpdating() throws Exception {
         ShaMap sm = new ShaMap();
@@ -0,0 +1,82 @@
+package com.weibei.core.types.shamap;
+
+import com.weibei.config.Config;
+import com.weibei.core.coretypes.hash.Hash256;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.weibei.core.TestFixtures.randomKey;
+import static junit.framework.TestCase.*;
+
+public class SnapshotPublisherTest {
+    static {
+        Config.initBouncy();
+    }
+
+    @Test
+    public void testReadersSeeConsistentSnapshots() throws Exception {
+        final Random random = new Random(12);
+        final ShaMap map = new ShaMap();
+        // The snapshot for `ledger` has `ledger` leaves
+        final ArrayList<Hash256> keys = new ArrayList<Hash256>();
+        final SnapshotPublisher<ShaMap> publisher = new SnapshotPublisher<ShaMap>();
+        assertNull(publisher.current());
+        publisher.publish(0, map);
+
+        final AtomicBoolean done = new AtomicBoolean(false);
+        ExecutorService readers = Executors.newFixedThreadPool(4);
+        ArrayList<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < 4; i++) {
+            results.add(readers.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    int checked = 0;
+                    while (!done.get()) {
+                        SnapshotPublisher.Snapshot<ShaMap> snapshot = publisher.current();
+                        final int[] leaves = {0};
+                        snapshot.map().walkLeaves(new LeafWalker() {
+                            @Override
+                            public void onLeaf(ShaMapLeaf leaf) {
+                                leaves[0]++;
+                            }
+                        });
+                        if (leaves[0] != snapshot.ledgerIndex ||
+                                !snapshot.map().hash().equals(snapshot.hash)) {
+                            return -1;
+                        }
+                        checked++;
+                    }
+                    return checked;
+                }
+            }));
+        }
+
+        for (int ledger = 1; ledger <= 300; ledger++) {
+            Hash256 key = randomKey(random);
+            keys.add(key);
+            map.addItem(key, new Hash256Item(key));
+            // Churn a few existing leaves, which the readers may be using
+            for (int i = 0; i < 3; i++) {
+                Hash256 existing = keys.get(random.nextInt(keys.size()));
+                map.getLeafForUpdating(existing);
+            }
+            publisher.publish(ledger, map);
+        }
+        done.set(true);
+        for (Future<Integer> result : results) {
+            assertTrue(result.get() >= 0);
+        }
+        readers.shutdown();
+        assertTrue(readers.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(300, publisher.current().ledgerIndex);
+        assertEquals(map.hash(), publisher.current().hash);
+    }
+}
@@ -0,0 +1,69 @@
+package com.weibei.cli.shamapanalysis;
+
+import com.weibei.config.Config;
+import com.weibei.core.types.shamap.AccountState;
+import com.weibei.core.types.shamap.ShaMapInner;
+import com.weibei.core.types.shamap.ShaMapLeaf;
+import com.weibei.core.types.shamap.ShaMapNode;
+import com.weibei.core.types.shamap.TreeWalker;
+
+import java.io.IOException;
+
+/**
+ * Compares the heap used by inner node branch arrays, between a fixed 16
+ * slot array per inner, and the dense arrays ShaMapInner actually uses, for
+ * the account state in a ledger dump (eg. from the `ledger` command with
+ * `accounts` and `expand` set)
+ *
+ * Sizes assume a 64 bit jvm with compressed oops, ie 16 byte array headers,
+ * 4 byte references and everything padded to 8 bytes.
+ */
+public class InnerNodeFootprint {
+    static {
+        Config.initBouncy();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: InnerNodeFootprint <ledger-dump.json>");
+            System.exit(1);
+        }
+        AccountState state = AccountState.loadFromLedgerDump(args[0]);
+
+        final long[] totals = new long[4];
+        state.walkTree(new TreeWalker() {
+            @Override
+            public void onLeaf(ShaMapLeaf leaf) {
+                totals[0]++;
+            }
+
+            @Override
+            public void onInner(ShaMapInner inner) {
+                int children = 0;
+                for (ShaMapNode branch : inner) {
+                    if (branch != null) {
+                        children++;
+                    }
+                }
+                totals[1]++;
+                totals[2] += arrayBytes(16);
+                // Empty inners share a single empty array
+                totals[3] += children == 0 ? 0 : arrayBytes(children);
+            }
+        });
+
+        System.out.printf("Leaves:                     %d%n", totals[0]);
+        System.out.printf("Inners:                     %d%n", totals[1]);
+        System.out.printf("Average children per inner: %.2f%n",
+                          (totals[0] + totals[1] - 1) / (double) totals[1]);
+        System.out.printf("16 slot branch arrays:      %d bytes%n", totals[2]);
+        System.out.printf("Dense branch arrays:        %d bytes%n", totals[3]);
+        System.out.printf("Saved:                      %d bytes (%.1f%%)%n",
+                          totals[2] - totals[3],
+                          100.0 * (totals[2] - totals[3]) / totals[2]);
+    }
+
+    private static long arrayBytes(int references) {
+        return (16 + 4 * references + 7) & ~7;
+    }
+}
@@ -420,7 +420,7 @@ class InstrumentedInnerNode extends ShaMapInner {
     public void walkTree(TreeWalker walker) {
         walker.onInnerNode(this);
 
-        for (ShaMapNode branch : branches) {
+        for (ShaMapNode branch : this) {
             if (branch instanceof InstrumentedInnerNode) {
                 InstrumentedInnerNode inner = (InstrumentedInnerNode) branch;
                 inner.walkTree(walker);
@@ -452,7 +452,7 @@ class InstrumentedInnerNode extends ShaMapInner {
 
     private int countFullBranches() {
         int n = 0;
-        for (ShaMapNode branch : branches) {
+        for (ShaMapNode branch : this) {
             if (branch != null) {
                 n++;
             }
@@ -463,7 +463,7 @@ class InstrumentedInnerNode extends ShaMapInner {
     public int depth() {
         int depth = this.depth;
 
-        for (ShaMapNode branch : branches) {
+        for (ShaMapNode branch : this) {
             if (branch instanceof InstrumentedInnerNode) {
                 InstrumentedInnerNode inner = (InstrumentedInnerNode) branch;
                 depth = Math.max(depth, inner.depth());
@@ -479,7 +479,7 @@ class InstrumentedInnerNode extends ShaMapInner {
         }
         counter.count(hash == null ? "dirty" : "clean");
 
-        for (ShaMapNode branch : branches) {
+        for (ShaMapNode branch : this) {
             if (branch instanceof InstrumentedInnerNode) {
                 InstrumentedInnerNode inner = (InstrumentedInnerNode) branch;
                 inner.dirtyVsCleanNodes(counter);
@@ -497,7 +497,7 @@ class InstrumentedInnerNode extends ShaMapInner {
             counter.count(numberUsedSlots);
         }
 
-        for (ShaMapNode branch : branches) {
+        for (ShaMapNode branch : this) {
             if (branch instanceof InstrumentedInnerNode) {
                 InstrumentedInnerNode inner = (InstrumentedInnerNode) branch;
                 inner.slotHistogramOverTime(counter);
@@ -513,7 +513,7 @@ class InstrumentedInnerNode extends ShaMapInner {
             total += (16 - used);
         }
 
-        for (ShaMapNode branch : branches) {
+        for (ShaMapNode branch : this) {
             if (branch instanceof InstrumentedInnerNode) {
                 InstrumentedInnerNode inner = (InstrumentedInnerNode) branch;
                 total += inner.unusedBranchesOverTime();
@@ -525,7 +525,7 @@ class InstrumentedInnerNode extends ShaMapInner {
     public long totalInnerNodes() {
         long total = 1;
 
-        for (ShaMapNode branch : branches) {
+        for (ShaMapNode branch : this) {
             if (branch instanceof InstrumentedInnerNode) {
                 InstrumentedInnerNode inner = (InstrumentedInnerNode) branch;
                 total += inner.totalInnerNodes();
@@ -539,7 +539,7 @@ class InstrumentedInnerNode extends ShaMapInner {
     public long unusedSlots() {
         long unused = 0;
 
-        for (ShaMapNode branch : branches) {
+        for (ShaMapNode branch : this) {
             if (branch == null) {
                 unused += 1;
             } else if (branch instanceof InstrumentedInnerNode) {
@@ -553,7 +553,7 @@ class InstrumentedInnerNode extends ShaMapInner {
     public long totalSlots() {
         long total = 16;
 
-        for (ShaMapNode branch : branches) {
+        for (ShaMapNode branch : this) {
             if (branch instanceof InstrumentedInnerNode) {
                 InstrumentedInnerNode inner = (InstrumentedInnerNode) branch;
                 total += inner.totalSlots();
@@ -565,7 +565,7 @@ class InstrumentedInnerNode extends ShaMapInner {
     public long totalUniqueInnerNodesOverTime() {
         long total = hashes.size();
 
-        for (ShaMapNode branch : branches) {
+        for (ShaMapNode branch : this) {
             if (branch instanceof InstrumentedInnerNode) {
                 InstrumentedInnerNode inner = (InstrumentedInnerNode) branch;
                 total += inner.totalUniqueInnerNodesOverTime();